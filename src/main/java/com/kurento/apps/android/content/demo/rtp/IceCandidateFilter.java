@@ -0,0 +1,94 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package com.kurento.apps.android.content.demo.rtp;
+
+import com.kurento.apps.android.content.demo.rtp.Preferences.IceCandidatePolicy;
+
+/**
+ * Applies an IceCandidatePolicy to candidate lines and to the candidates of
+ * SDP descriptions. The PeerConnection gathers every candidate, so those the
+ * policy rejects are removed from what is signaled and from the remote
+ * description, leaving ICE no other pair to check.
+ */
+final class IceCandidateFilter {
+
+	private static final String SDP_PREFIX = "a=";
+	private static final String CANDIDATE_PREFIX = "candidate:";
+
+	// Fields of "candidate:foundation component transport priority address
+	// port typ type ...".
+	private static final int TRANSPORT_FIELD = 2;
+	private static final int ADDRESS_FIELD = 4;
+	private static final int TYPE_FIELD = 7;
+
+	private IceCandidateFilter() {
+	}
+
+	/**
+	 * Whether |policy| allows |candidate|, a candidate attribute with or
+	 * without its "a=" prefix. Lines that cannot be parsed are kept.
+	 */
+	static boolean accepts(IceCandidatePolicy policy, String candidate) {
+		if (policy == IceCandidatePolicy.ALL) {
+			return true;
+		}
+
+		String line = candidate.trim();
+		if (line.startsWith(SDP_PREFIX)) {
+			line = line.substring(SDP_PREFIX.length());
+		}
+		if (!line.startsWith(CANDIDATE_PREFIX)) {
+			return true;
+		}
+		String[] fields = line.substring(CANDIDATE_PREFIX.length()).split(
+				"\\s+");
+		if (fields.length <= TYPE_FIELD) {
+			return true;
+		}
+
+		switch (policy) {
+		case HOST_ONLY:
+			return "host".equalsIgnoreCase(fields[TYPE_FIELD]);
+		case NO_TCP:
+			return !"tcp".equalsIgnoreCase(fields[TRANSPORT_FIELD]);
+		case IPV4_ONLY:
+			return fields[ADDRESS_FIELD].indexOf(':') == -1;
+		default:
+			return true;
+		}
+	}
+
+	/** |sdp| without the candidate lines |policy| rejects. */
+	static String filterSdp(IceCandidatePolicy policy, String sdp) {
+		if (policy == IceCandidatePolicy.ALL || sdp == null) {
+			return sdp;
+		}
+
+		StringBuilder filtered = new StringBuilder(sdp.length());
+		int start = 0;
+		while (start < sdp.length()) {
+			int end = sdp.indexOf('\n', start);
+			end = end == -1 ? sdp.length() : end + 1;
+			String line = sdp.substring(start, end);
+			if (!line.startsWith(SDP_PREFIX + CANDIDATE_PREFIX)
+					|| accepts(policy, line)) {
+				filtered.append(line);
+			}
+			start = end;
+		}
+		return filtered.toString();
+	}
+
+}
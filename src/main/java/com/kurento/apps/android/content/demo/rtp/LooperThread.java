@@ -47,13 +47,19 @@ public class LooperThread extends Thread {
 	}
 
 	public boolean post(Runnable r) {
+		return postDelayed(r, 0);
+	}
+
+	/** Run |r| on this thread once |delayMillis| have elapsed. */
+	public boolean postDelayed(Runnable r, long delayMillis) {
 		try {
 			synchronized (initControl) {
 				if (!initiated) {
 					initControl.wait();
 				}
 			}
-			return mHandler.post(r);
+			return delayMillis > 0 ? mHandler.postDelayed(r, delayMillis)
+					: mHandler.post(r);
 		} catch (InterruptedException e) {
 			log.error("Cannot run", e);
 			return false;
@@ -84,6 +84,8 @@ public class MainActivity extends Activity {
 	private MediaComponentAndroid videoViewerComponent;
 
 	private MediaSession session;
+	// WebRTC session prepared while no session runs, taken by startSession().
+	private WebRtcSession warmSession;
 	private SessionEstablishedHandler sessionEstablishedHandler = new SessionEstablishedHandlerImpl();
 	private SessionExceptionHandler sessionExceptionHandler = new SessionExceptionHandlerImpl();
 
@@ -133,18 +135,36 @@ public class MainActivity extends Activity {
 	protected void onResume() {
 		mWakeLock.acquire();
 		super.onResume();
+		warmUpSession();
 	}
 
 	@Override
 	protected void onPause() {
 		mWakeLock.release();
 		terminateSession();
+		if (warmSession != null) {
+			warmSession.terminate();
+			warmSession = null;
+		}
 		super.onPause();
 	}
 
+	// Prepare a WebRTC session, so that pressing start does not wait for the
+	// camera, the PeerConnection and ICE gathering.
+	private void warmUpSession() {
+		if (warmSession != null
+				|| !RtcType.WEBRTC.equals(Preferences.getMediaType(this))) {
+			return;
+		}
+		warmSession = new WebRtcSession(this);
+		warmSession.warmUp();
+	}
+
 	public void startSession(View v) {
 		if (RtcType.WEBRTC.equals(Preferences.getMediaType(this))) {
-			session = new WebRtcSession(this);
+			session = warmSession != null ? warmSession : new WebRtcSession(
+					this);
+			warmSession = null;
 		} else {
 			try {
 				session = new RtpSession(this, mediaSession);
@@ -175,6 +195,7 @@ public class MainActivity extends Activity {
 
 	public void terminateSession(View v) {
 		terminateSession();
+		warmUpSession();
 	}
 
 	private void terminateSession() {
@@ -2,6 +2,8 @@ package com.kurento.apps.android.content.demo.rtp;
 
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -13,6 +15,7 @@ import android.content.Context;
 import com.kurento.apps.android.content.demo.rtp.jsonrpc.AsyncJsonRpcClient;
 import com.kurento.apps.android.content.demo.rtp.jsonrpc.AsyncJsonRpcClient.JsonRpcRequestHandler;
 import com.kurento.kmf.content.jsonrpc.Constraints;
+import com.kurento.kmf.content.jsonrpc.GsonUtils;
 import com.kurento.kmf.content.jsonrpc.JsonRpcRequest;
 import com.kurento.kmf.content.jsonrpc.JsonRpcResponse;
 import com.kurento.kmf.content.jsonrpc.JsonRpcResponseError;
@@ -39,6 +42,32 @@ public abstract class MediaSession {
 		void onError(Exception e);
 	}
 
+	/**
+	 * How local ICE candidates reach the server. FULL_GATHER waits until all
+	 * of them are gathered and sends them in the SDP offer; TRICKLE sends the
+	 * offer at once and each candidate in its own request as it is gathered.
+	 */
+	public enum IceMode {
+		FULL_GATHER, TRICKLE;
+	}
+
+	// Command of the execute requests carrying trickled candidates.
+	private static final String ICE_CANDIDATE_COMMAND = "addIceCandidate";
+
+	// Serialized as the data of an ICE_CANDIDATE_COMMAND request, with the
+	// fields of a browser RTCIceCandidate.
+	private static class IceCandidateData {
+		final String sdpMid;
+		final int sdpMLineIndex;
+		final String candidate;
+
+		IceCandidateData(String sdpMid, int sdpMLineIndex, String candidate) {
+			this.sdpMid = sdpMid;
+			this.sdpMLineIndex = sdpMLineIndex;
+			this.candidate = candidate;
+		}
+	}
+
 	private final Context context;
 
 	private String uuid;
@@ -49,10 +78,17 @@ public abstract class MediaSession {
 	private int serverPort;
 	private String demoUrl;
 
+	private volatile IceMode iceMode = IceMode.FULL_GATHER;
+	// Candidates gathered before the session id is known. Guarded by the
+	// session.
+	private final List<IceCandidateData> pendingCandidates = new ArrayList<IceCandidateData>();
+
 	private SessionExceptionHandler sessionExceptionHandler;
 	private SessionEstablishedHandler sessionEstablishedHandler;
 
 	private final LooperThread looperThread = new LooperThread();
+	// System.nanoTime() when start() was called, or -1.
+	private volatile long startTime = -1;
 	private static final AtomicInteger sequenceNumber = new AtomicInteger(0);
 
 	MediaSession(Context context) {
@@ -76,18 +112,51 @@ public abstract class MediaSession {
 		this.sessionExceptionHandler = sessionExceptionHandler;
 	}
 
+	/** Choose how local ICE candidates are signaled. Call before start(). */
+	public void setIceMode(IceMode iceMode) {
+		this.iceMode = iceMode;
+	}
+
+	public IceMode getIceMode() {
+		return iceMode;
+	}
+
 	private synchronized String getSessionId() {
 		return sessionId;
 	}
 
-	private synchronized void setSessionId(String sessionId) {
-		this.sessionId = sessionId;
+	// Set the session id and send the candidates gathered until now.
+	private void setSessionId(String sessionId) {
+		List<IceCandidateData> candidates;
+		synchronized (this) {
+			this.sessionId = sessionId;
+			candidates = new ArrayList<IceCandidateData>(pendingCandidates);
+			pendingCandidates.clear();
+		}
+
+		for (IceCandidateData candidate : candidates) {
+			sendRpcIceCandidate(candidate, sessionId);
+		}
 	}
 
 	protected abstract void generateSdpOffer(Callback<String> callback);
 
+	/** System.nanoTime() when start() was called, or -1 if it was not. */
+	public long getStartTime() {
+		return startTime;
+	}
+
+	// Sessions may be terminated without having been started, e.g. after
+	// being prepared in advance.
+	private synchronized void ensureLooperStarted() {
+		if (looperThread.getState() == Thread.State.NEW) {
+			looperThread.start();
+		}
+	}
+
 	public void start() {
-		looperThread.start();
+		startTime = System.nanoTime();
+		ensureLooperStarted();
 		looperThread.post(new Runnable() {
 			@Override
 			public void run() {
@@ -120,6 +189,7 @@ public abstract class MediaSession {
 
 	private synchronized void terminateSync() {
 		request2Terminate = true;
+		pendingCandidates.clear();
 		if (sessionId == null) {
 			log.info("The session with " + uuid + " is not stablished yet");
 			return;
@@ -153,6 +223,7 @@ public abstract class MediaSession {
 	}
 
 	public void terminate() {
+		ensureLooperStarted();
 		looperThread.post(new Runnable() {
 			@Override
 			public void run() {
@@ -166,6 +237,65 @@ public abstract class MediaSession {
 	protected abstract void processSdpAnswer(Callback<Void> callback,
 			String sdpAnswer);
 
+	/**
+	 * Send a local ICE candidate gathered in TRICKLE mode. Candidates gathered
+	 * before the server has answered the offer are sent once it has.
+	 */
+	protected void sendIceCandidate(String sdpMid, int sdpMLineIndex,
+			String candidate) {
+		IceCandidateData data = new IceCandidateData(sdpMid, sdpMLineIndex,
+				candidate);
+		String id;
+		synchronized (this) {
+			if (request2Terminate) {
+				return;
+			}
+			id = sessionId;
+			if (id == null) {
+				pendingCandidates.add(data);
+				return;
+			}
+		}
+
+		sendRpcIceCandidate(data, id);
+	}
+
+	// A lost candidate only removes one of the possible paths, so errors are
+	// logged rather than terminating the session.
+	private void sendRpcIceCandidate(IceCandidateData candidate,
+			String sessionId) {
+		JsonRpcRequest req = JsonRpcRequest.newExecuteRequest(
+				ICE_CANDIDATE_COMMAND, GsonUtils.getGson().toJson(candidate),
+				sessionId, sequenceNumber.getAndIncrement());
+
+		try {
+			URL url = new URL(
+					context.getString(R.string.preference_server_standard_protocol_default),
+					serverAddres, serverPort, demoUrl);
+
+			AsyncJsonRpcClient.sendRequest(url, req,
+					new JsonRpcRequestHandler() {
+						@Override
+						public void onSuccess(JsonRpcResponse resp) {
+							if (resp.isError()) {
+								JsonRpcResponseError error = resp
+										.getResponseError();
+								log.warn("ICE candidate rejected: "
+										+ error.getMessage() + "("
+										+ error.getCode() + ")");
+							}
+						}
+
+						@Override
+						public void onError(Exception e) {
+							log.warn("Exception sending ICE candidate", e);
+						}
+					});
+		} catch (IOException e) {
+			log.warn("error: " + e.getMessage(), e);
+		}
+	}
+
 	private void sendRpcStart(String sdpOffer) throws IOException {
 		JsonRpcRequest req = JsonRpcRequest.newStartRequest(sdpOffer,
 				new JsonRpcConstraints(Constraints.SENDRECV.toString(),
@@ -44,8 +44,16 @@ public class PeerConnectionFactorySingleton extends PeerConnectionFactory {
 	/* Video */
 	private static VideoCapturer videoCapturer;
 	private static VideoSource videoSource;
-
+	// Sessions holding |videoSource|, which may overlap while one is being
+	// released and the next one prepared.
+	private static int videoSourceUsers = 0;
+
+	/**
+	 * Return the camera source, creating it if needed. Each call must be
+	 * matched by a releaseVideoSource().
+	 */
 	public synchronized static VideoSource getVideoSource() {
+		videoSourceUsers++;
 		if (videoSource != null) {
 			return videoSource;
 		}
@@ -63,7 +71,12 @@ public class PeerConnectionFactorySingleton extends PeerConnectionFactory {
 		return videoSource;
 	}
 
-	synchronized static void disposeVideoSource() {
+	// Dispose of the camera source once no session holds it.
+	synchronized static void releaseVideoSource() {
+		if (videoSourceUsers > 0 && --videoSourceUsers > 0) {
+			return;
+		}
+
 		if (videoCapturer != null) {
 			videoCapturer.dispose();
 			videoCapturer = null;
@@ -22,6 +22,7 @@ import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.webrtc.PeerConnection;
 
 import android.app.AlertDialog;
 import android.content.Context;
@@ -29,6 +30,7 @@ import android.content.DialogInterface;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.os.Bundle;
+import android.preference.CheckBoxPreference;
 import android.preference.EditTextPreference;
 import android.preference.ListPreference;
 import android.preference.Preference;
@@ -48,12 +50,26 @@ public class Preferences extends PreferenceActivity {
 		RTP, WEBRTC;
 	}
 
+	/**
+	 * Which local and remote ICE candidates are used. HOST_ONLY also skips the
+	 * ICE servers, so that gathering on a LAN finishes without waiting for
+	 * them.
+	 */
+	public enum IceCandidatePolicy {
+		ALL, HOST_ONLY, NO_TCP, IPV4_ONLY;
+	}
+
 	// Preferences keys
 	public static final String SERVER_ADDRESS_KEY = "SERVER_ADDRESS_KEY";
 	public static final String SERVER_PORT_KEY = "SERVER_PORT_KEY";
 	public static final String RTC_TYPE_KEY = "RTC_TYPE_KEY";
 	public static final String DEMOS_LIST_KEY = "DEMOS_LIST_KEY";
 	public static final String CUSTOM_DEMOS_SET_KEY = "CUSTOM_DEMOS_SET_KEY";
+	public static final String ICE_SERVERS_KEY = "ICE_SERVERS_KEY";
+	public static final String ICE_CANDIDATE_POLICY_KEY = "ICE_CANDIDATE_POLICY_KEY";
+	public static final String ICE_MODE_KEY = "ICE_MODE_KEY";
+	public static final String STATS_INTERVAL_KEY = "STATS_INTERVAL_KEY";
+	public static final String STATS_LOG_KEY = "STATS_LOG_KEY";
 
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
@@ -109,9 +125,58 @@ public class Preferences extends PreferenceActivity {
 
 		root.addPreference(buildDemoSelector());
 
+		// ICE
+		EditTextPreference iceServersText = new EditTextPreference(this);
+		iceServersText.setKey(ICE_SERVERS_KEY);
+		iceServersText.setTitle(getString(R.string.preference_ice_servers));
+		iceServersText
+				.setDialogMessage(getString(R.string.preference_ice_servers_hint));
+		iceServersText
+				.setDefaultValue(getString(R.string.preference_ice_servers_default));
+		root.addPreference(iceServersText);
+
+		root.addPreference(buildList(ICE_CANDIDATE_POLICY_KEY,
+				R.string.preference_ice_candidate_policy,
+				R.array.preference_ice_candidate_policy_list,
+				R.string.preference_ice_candidate_policy_default));
+		root.addPreference(buildList(ICE_MODE_KEY,
+				R.string.preference_ice_mode, R.array.preference_ice_mode_list,
+				R.string.preference_ice_mode_default));
+
+		// Stats
+		EditTextPreference statsIntervalText = new EditTextPreference(this);
+		statsIntervalText.setKey(STATS_INTERVAL_KEY);
+		statsIntervalText
+				.setTitle(getString(R.string.preference_stats_interval));
+		statsIntervalText
+				.setDialogMessage(getString(R.string.preference_stats_interval_hint));
+		statsIntervalText.getEditText().setInputType(
+				InputType.TYPE_CLASS_NUMBER);
+		statsIntervalText
+				.setDefaultValue(getString(R.string.preference_stats_interval_default));
+		root.addPreference(statsIntervalText);
+
+		CheckBoxPreference statsLogCheck = new CheckBoxPreference(this);
+		statsLogCheck.setKey(STATS_LOG_KEY);
+		statsLogCheck.setTitle(getString(R.string.preference_stats_log));
+		statsLogCheck.setDefaultValue(false);
+		root.addPreference(statsLogCheck);
+
 		return root;
 	}
 
+	private ListPreference buildList(String key, int title, int entries,
+			int defaultValue) {
+		CharSequence[] values = getResources().getStringArray(entries);
+		ListPreference list = new ListPreference(this);
+		list.setKey(key);
+		list.setTitle(getString(title));
+		list.setEntries(values);
+		list.setEntryValues(values);
+		list.setDefaultValue(getString(defaultValue));
+		return list;
+	}
+
 	private ListPreference buildDemoSelector() {
 		final ListPreference demosList = new ListPreference(this);
 		demosList.setKey(DEMOS_LIST_KEY);
@@ -261,6 +326,93 @@ public class Preferences extends PreferenceActivity {
 		return RtcType.RTP;
 	}
 
+	/**
+	 * ICE servers given as comma separated URIs, each optionally followed by
+	 * a user name and a password. Empty if none is configured.
+	 */
+	public static List<PeerConnection.IceServer> getIceServers(Context context) {
+		SharedPreferences pref = PreferenceManager
+				.getDefaultSharedPreferences(context);
+
+		String value = pref.getString(ICE_SERVERS_KEY,
+				context.getString(R.string.preference_ice_servers_default));
+
+		List<PeerConnection.IceServer> servers = new ArrayList<PeerConnection.IceServer>();
+		for (String entry : value.split(",")) {
+			String[] fields = entry.trim().split("\\s+");
+			if (fields[0].isEmpty()) {
+				continue;
+			}
+			if (fields.length > 3) {
+				log.warn("Ignoring malformed ICE server: " + entry);
+				continue;
+			}
+			servers.add(new PeerConnection.IceServer(fields[0],
+					fields.length > 1 ? fields[1] : "",
+					fields.length > 2 ? fields[2] : ""));
+		}
+
+		return servers;
+	}
+
+	public static IceCandidatePolicy getIceCandidatePolicy(Context context) {
+		SharedPreferences pref = PreferenceManager
+				.getDefaultSharedPreferences(context);
+
+		String value = pref.getString(ICE_CANDIDATE_POLICY_KEY,
+				context.getString(R.string.preference_ice_candidate_policy_default));
+		if (context.getString(R.string.preference_ice_candidate_policy_host)
+				.equals(value)) {
+			return IceCandidatePolicy.HOST_ONLY;
+		} else if (context.getString(
+				R.string.preference_ice_candidate_policy_no_tcp).equals(value)) {
+			return IceCandidatePolicy.NO_TCP;
+		} else if (context.getString(
+				R.string.preference_ice_candidate_policy_ipv4).equals(value)) {
+			return IceCandidatePolicy.IPV4_ONLY;
+		}
+
+		return IceCandidatePolicy.ALL;
+	}
+
+	public static MediaSession.IceMode getIceMode(Context context) {
+		SharedPreferences pref = PreferenceManager
+				.getDefaultSharedPreferences(context);
+
+		String value = pref.getString(ICE_MODE_KEY,
+				context.getString(R.string.preference_ice_mode_default));
+		if (context.getString(R.string.preference_ice_mode_trickle).equals(
+				value)) {
+			return MediaSession.IceMode.TRICKLE;
+		}
+
+		return MediaSession.IceMode.FULL_GATHER;
+	}
+
+	/** Milliseconds between polls of the WebRTC stats, 0 if disabled. */
+	public static long getStatsIntervalMs(Context context) {
+		SharedPreferences pref = PreferenceManager
+				.getDefaultSharedPreferences(context);
+
+		String interval = pref.getString(STATS_INTERVAL_KEY,
+				context.getString(R.string.preference_stats_interval_default));
+
+		try {
+			return Math.max(0, Long.parseLong(interval.trim())) * 1000;
+		} catch (NumberFormatException e) {
+			log.warn("Invalid stats interval: " + interval);
+			return Long.parseLong(context
+					.getString(R.string.preference_stats_interval_default)) * 1000;
+		}
+	}
+
+	public static boolean isStatsLogEnabled(Context context) {
+		SharedPreferences pref = PreferenceManager
+				.getDefaultSharedPreferences(context);
+
+		return pref.getBoolean(STATS_LOG_KEY, false);
+	}
+
 	public static String getDemoUrl(Context context) {
 		SharedPreferences pref = PreferenceManager
 				.getDefaultSharedPreferences(context);
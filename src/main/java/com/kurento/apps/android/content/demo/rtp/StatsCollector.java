@@ -0,0 +1,484 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package com.kurento.apps.android.content.demo.rtp;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.webrtc.PeerConnection;
+import org.webrtc.StatsObserver;
+import org.webrtc.StatsReport;
+
+/**
+ * Polls the stats of a PeerConnection on the worker of its session and keeps
+ * the last results as Snapshots in a rolling window. A poll is only scheduled
+ * once the previous one has completed, so slow stats never pile up.
+ *
+ * Reports are parsed field by field into counters reused across polls, so
+ * each poll only allocates its Snapshot, and the line written to the log file
+ * if one is set.
+ */
+public class StatsCollector {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(StatsCollector.class.getSimpleName());
+
+	/** Receives every new Snapshot, on the worker of the session. */
+	public interface Listener {
+		void onStats(Snapshot snapshot);
+	}
+
+	/**
+	 * Stats of a PeerConnection at one poll. Rates are computed from the
+	 * counters of the previous poll, and are -1 on the first one.
+	 */
+	public static class Snapshot {
+
+		static final String CSV_HEADER = "timestampMs,sendBitrate,"
+				+ "receiveBitrate,availableSendBandwidth,"
+				+ "availableReceiveBandwidth,rttMs,jitterMs,packetsLost,"
+				+ "sendPacketsLost,lossFraction,frameRateSent,"
+				+ "frameRateReceived,frameRateDecoded,frameRateOutput,"
+				+ "framesDroppedPerSecond,cpuLimited,bandwidthLimited,"
+				+ "encodeUsagePercent";
+
+		public final long timestampMs;
+		// Bits per second of all RTP streams.
+		public final long sendBitrate;
+		public final long receiveBitrate;
+		// Estimated by the bandwidth estimator of the video engine.
+		public final long availableSendBandwidth;
+		public final long availableReceiveBandwidth;
+		// Worst round trip time and audio jitter of all streams.
+		public final long rttMs;
+		public final long jitterMs;
+		// Packets lost by received streams, and reported lost by the remote
+		// end for sent streams, since the streams started.
+		public final long packetsLost;
+		public final long sendPacketsLost;
+		// Fraction of received packets lost since the previous poll.
+		public final double lossFraction;
+		public final int frameRateSent;
+		public final int frameRateReceived;
+		public final int frameRateDecoded;
+		public final int frameRateOutput;
+		// Received frames per second that were not decoded.
+		public final int framesDroppedPerSecond;
+		// Whether the encoder lowered the resolution for lack of CPU or
+		// bandwidth.
+		public final boolean cpuLimited;
+		public final boolean bandwidthLimited;
+		public final int encodeUsagePercent;
+
+		// Copy the counters of the poll just parsed by |collector|, with the
+		// rates computed from the previous one.
+		private Snapshot(StatsCollector collector, long timestampMs,
+				long sendBitrate, long receiveBitrate, double lossFraction) {
+			this.timestampMs = timestampMs;
+			this.sendBitrate = sendBitrate;
+			this.receiveBitrate = receiveBitrate;
+			this.lossFraction = lossFraction;
+			availableSendBandwidth = collector.availableSendBandwidth;
+			availableReceiveBandwidth = collector.availableReceiveBandwidth;
+			rttMs = collector.rttMs;
+			jitterMs = collector.jitterMs;
+			packetsLost = collector.packetsLost;
+			sendPacketsLost = collector.sendPacketsLost;
+			frameRateSent = collector.frameRateSent;
+			frameRateReceived = collector.frameRateReceived;
+			frameRateDecoded = collector.frameRateDecoded;
+			frameRateOutput = collector.frameRateOutput;
+			framesDroppedPerSecond = Math.max(0, frameRateReceived
+					- frameRateDecoded);
+			cpuLimited = collector.cpuLimited;
+			bandwidthLimited = collector.bandwidthLimited;
+			encodeUsagePercent = collector.encodeUsagePercent;
+		}
+
+		String toCsv() {
+			return timestampMs + "," + sendBitrate + "," + receiveBitrate + ","
+					+ availableSendBandwidth + "," + availableReceiveBandwidth
+					+ "," + rttMs + "," + jitterMs + "," + packetsLost + ","
+					+ sendPacketsLost + "," + lossFraction + ","
+					+ frameRateSent + "," + frameRateReceived + ","
+					+ frameRateDecoded + "," + frameRateOutput + ","
+					+ framesDroppedPerSecond + "," + cpuLimited + ","
+					+ bandwidthLimited + "," + encodeUsagePercent;
+		}
+
+		@Override
+		public String toString() {
+			return "send/receive bitrate (bps): " + sendBitrate + "/"
+					+ receiveBitrate + ", available send/receive (bps): "
+					+ availableSendBandwidth + "/" + availableReceiveBandwidth
+					+ ", rtt (ms): " + rttMs + ", jitter (ms): " + jitterMs
+					+ ", packets lost received/sent: " + packetsLost + "/"
+					+ sendPacketsLost + ", loss fraction: " + lossFraction
+					+ ", fps sent/received/decoded/output: " + frameRateSent
+					+ "/" + frameRateReceived + "/" + frameRateDecoded + "/"
+					+ frameRateOutput + ", dropped fps: "
+					+ framesDroppedPerSecond + ", cpu/bandwidth limited: "
+					+ cpuLimited + "/" + bandwidthLimited
+					+ ", encode usage (%): " + encodeUsagePercent;
+		}
+	}
+
+	private final WebRtcWorkers.Worker worker;
+	private final Snapshot[] window;
+	// Index of the next Snapshot in |window|, and how many it holds. Guarded
+	// by |window|.
+	private int next = 0;
+	private int count = 0;
+
+	private volatile long intervalMs;
+	private volatile Listener listener;
+	private volatile File logFile;
+
+	// Only touched on the worker.
+	private PeerConnection peerConnection;
+	private boolean running = false;
+	private boolean pollScheduled = false;
+	private boolean pollInFlight = false;
+	private BufferedWriter logWriter;
+
+	// Counters of the poll being parsed, and of the previous one. Worker only.
+	private long bytesSent;
+	private long bytesReceived;
+	private long packetsReceived;
+	private long packetsLost;
+	private long sendPacketsLost;
+	private long rttMs;
+	private long jitterMs;
+	private long availableSendBandwidth;
+	private long availableReceiveBandwidth;
+	private int frameRateSent;
+	private int frameRateReceived;
+	private int frameRateDecoded;
+	private int frameRateOutput;
+	private boolean cpuLimited;
+	private boolean bandwidthLimited;
+	private int encodeUsagePercent;
+	private long lastTimestampMs = -1;
+	private long lastBytesSent;
+	private long lastBytesReceived;
+	private long lastPacketsReceived;
+	private long lastPacketsLost;
+
+	/**
+	 * Poll on |worker| every |intervalMs|, or never if it is 0, keeping the
+	 * last |windowSize| Snapshots.
+	 */
+	StatsCollector(WebRtcWorkers.Worker worker, long intervalMs,
+			int windowSize) {
+		if (windowSize < 1) {
+			throw new IllegalArgumentException("Invalid window size: "
+					+ windowSize);
+		}
+		this.worker = worker;
+		this.intervalMs = intervalMs;
+		window = new Snapshot[windowSize];
+	}
+
+	/** Change the polling interval; 0 stops polling until it is changed. */
+	public void setInterval(long intervalMs) {
+		this.intervalMs = intervalMs;
+		worker.post(new Runnable() {
+			@Override
+			public void run() {
+				schedulePoll();
+			}
+		});
+	}
+
+	public long getInterval() {
+		return intervalMs;
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Append each Snapshot as a CSV line to |file|, or stop logging if it is
+	 * null. Takes effect on the next start().
+	 */
+	public void setLogFile(File file) {
+		logFile = file;
+	}
+
+	/** The newest Snapshot, or null if there is none yet. */
+	public Snapshot getLatest() {
+		synchronized (window) {
+			if (count == 0) {
+				return null;
+			}
+			return window[(next + window.length - 1) % window.length];
+		}
+	}
+
+	/** The Snapshots in the window, oldest first. */
+	public List<Snapshot> getWindow() {
+		synchronized (window) {
+			List<Snapshot> snapshots = new ArrayList<Snapshot>(count);
+			for (int i = count; i > 0; i--) {
+				snapshots.add(window[(next + window.length - i)
+						% window.length]);
+			}
+			return snapshots;
+		}
+	}
+
+	/**
+	 * Start polling |peerConnection|, unless already polling. Must run on the
+	 * worker.
+	 */
+	void start(PeerConnection peerConnection) {
+		if (running) {
+			return;
+		}
+		this.peerConnection = peerConnection;
+		running = true;
+		lastTimestampMs = -1;
+		openLog();
+		schedulePoll();
+	}
+
+	/**
+	 * Stop polling, before the PeerConnection is disposed. Must run on the
+	 * worker.
+	 */
+	void stop() {
+		running = false;
+		peerConnection = null;
+		closeLog();
+	}
+
+	private void schedulePoll() {
+		long interval = intervalMs;
+		if (!running || pollScheduled || pollInFlight || interval <= 0) {
+			return;
+		}
+		pollScheduled = true;
+		worker.postDelayed(pollTask, interval);
+	}
+
+	private final Runnable pollTask = new Runnable() {
+		@Override
+		public void run() {
+			pollScheduled = false;
+			if (!running) {
+				return;
+			}
+
+			pollInFlight = true;
+			if (!peerConnection.getStats(statsObserver, null)) {
+				log.warn("Cannot get stats");
+				pollInFlight = false;
+				schedulePoll();
+			}
+		}
+	};
+
+	// Called on a WebRTC thread; the reports are parsed on the worker.
+	private final StatsObserver statsObserver = new StatsObserver() {
+		@Override
+		public void onComplete(final StatsReport[] reports) {
+			worker.post(new Runnable() {
+				@Override
+				public void run() {
+					pollInFlight = false;
+					if (!running) {
+						return;
+					}
+					record(parse(reports));
+					schedulePoll();
+				}
+			});
+		}
+	};
+
+	private Snapshot parse(StatsReport[] reports) {
+		bytesSent = bytesReceived = packetsReceived = 0;
+		packetsLost = sendPacketsLost = rttMs = jitterMs = 0;
+		availableSendBandwidth = availableReceiveBandwidth = 0;
+		frameRateSent = frameRateReceived = 0;
+		frameRateDecoded = frameRateOutput = 0;
+		cpuLimited = bandwidthLimited = false;
+		encodeUsagePercent = 0;
+
+		for (StatsReport report : reports) {
+			if ("ssrc".equals(report.type)) {
+				parseSsrc(report.values);
+			} else if ("VideoBwe".equals(report.type)) {
+				parseBwe(report.values);
+			}
+		}
+
+		long now = System.currentTimeMillis();
+		long sendBitrate = -1;
+		long receiveBitrate = -1;
+		double lossFraction = -1;
+		if (lastTimestampMs != -1 && now > lastTimestampMs) {
+			long elapsedMs = now - lastTimestampMs;
+			sendBitrate = (bytesSent - lastBytesSent) * 8 * 1000 / elapsedMs;
+			receiveBitrate = (bytesReceived - lastBytesReceived) * 8 * 1000
+					/ elapsedMs;
+			long received = packetsReceived - lastPacketsReceived;
+			long lost = packetsLost - lastPacketsLost;
+			lossFraction = received + lost > 0 ? (double) lost
+					/ (received + lost) : 0;
+		}
+		lastTimestampMs = now;
+		lastBytesSent = bytesSent;
+		lastBytesReceived = bytesReceived;
+		lastPacketsReceived = packetsReceived;
+		lastPacketsLost = packetsLost;
+
+		return new Snapshot(this, now, sendBitrate, receiveBitrate,
+				lossFraction);
+	}
+
+	// Sent streams have bytesSent, received ones bytesReceived; packetsLost
+	// of a sent stream is what the remote end reports.
+	private void parseSsrc(StatsReport.Value[] values) {
+		boolean sent = false;
+		for (StatsReport.Value value : values) {
+			if ("bytesSent".equals(value.name)) {
+				sent = true;
+				break;
+			}
+		}
+
+		for (StatsReport.Value value : values) {
+			String name = value.name;
+			if ("bytesSent".equals(name)) {
+				bytesSent += parseLong(value.value);
+			} else if ("bytesReceived".equals(name)) {
+				bytesReceived += parseLong(value.value);
+			} else if ("packetsReceived".equals(name)) {
+				packetsReceived += parseLong(value.value);
+			} else if ("packetsLost".equals(name)) {
+				if (sent) {
+					sendPacketsLost += parseLong(value.value);
+				} else {
+					packetsLost += parseLong(value.value);
+				}
+			} else if ("googRtt".equals(name)) {
+				rttMs = Math.max(rttMs, parseLong(value.value));
+			} else if ("googJitterReceived".equals(name)) {
+				jitterMs = Math.max(jitterMs, parseLong(value.value));
+			} else if ("googFrameRateSent".equals(name)) {
+				frameRateSent += (int) parseLong(value.value);
+			} else if ("googFrameRateReceived".equals(name)) {
+				frameRateReceived += (int) parseLong(value.value);
+			} else if ("googFrameRateDecoded".equals(name)) {
+				frameRateDecoded += (int) parseLong(value.value);
+			} else if ("googFrameRateOutput".equals(name)) {
+				frameRateOutput += (int) parseLong(value.value);
+			} else if ("googCpuLimitedResolution".equals(name)) {
+				cpuLimited |= "true".equals(value.value);
+			} else if ("googBandwidthLimitedResolution".equals(name)) {
+				bandwidthLimited |= "true".equals(value.value);
+			} else if ("googEncodeUsagePercent".equals(name)) {
+				encodeUsagePercent = Math.max(encodeUsagePercent,
+						(int) parseLong(value.value));
+			}
+		}
+	}
+
+	private void parseBwe(StatsReport.Value[] values) {
+		for (StatsReport.Value value : values) {
+			if ("googAvailableSendBandwidth".equals(value.name)) {
+				availableSendBandwidth = parseLong(value.value);
+			} else if ("googAvailableReceiveBandwidth".equals(value.name)) {
+				availableReceiveBandwidth = parseLong(value.value);
+			}
+		}
+	}
+
+	// Stats values are integers, but some come as "-1" or empty while a
+	// stream starts.
+	private static long parseLong(String value) {
+		try {
+			return Math.max(0, Long.parseLong(value));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	private void record(Snapshot snapshot) {
+		synchronized (window) {
+			window[next] = snapshot;
+			next = (next + 1) % window.length;
+			count = Math.min(count + 1, window.length);
+		}
+		log.debug("Stats: {}", snapshot);
+
+		if (logWriter != null) {
+			try {
+				logWriter.write(snapshot.toCsv());
+				logWriter.newLine();
+				logWriter.flush();
+			} catch (IOException e) {
+				log.warn("Cannot write stats log", e);
+				closeLog();
+			}
+		}
+
+		Listener l = listener;
+		if (l != null) {
+			l.onStats(snapshot);
+		}
+	}
+
+	private void openLog() {
+		File file = logFile;
+		if (file == null || logWriter != null) {
+			return;
+		}
+
+		try {
+			boolean exists = file.exists() && file.length() > 0;
+			logWriter = new BufferedWriter(new FileWriter(file, true));
+			if (!exists) {
+				logWriter.write(Snapshot.CSV_HEADER);
+				logWriter.newLine();
+			}
+			log.info("Writing stats to " + file);
+		} catch (IOException e) {
+			log.warn("Cannot open stats log " + file, e);
+			logWriter = null;
+		}
+	}
+
+	private void closeLog() {
+		if (logWriter == null) {
+			return;
+		}
+		try {
+			logWriter.close();
+		} catch (IOException e) {
+			log.warn("Cannot close stats log", e);
+		}
+		logWriter = null;
+	}
+
+}
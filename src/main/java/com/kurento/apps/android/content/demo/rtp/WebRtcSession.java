@@ -14,8 +14,11 @@
  */
 package com.kurento.apps.android.content.demo.rtp;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,8 +44,10 @@ import org.webrtc.VideoTrack;
 import android.app.Activity;
 import android.content.Context;
 import android.view.ViewGroup;
+import android.view.ViewParent;
 import android.widget.FrameLayout;
 
+import com.kurento.apps.android.content.demo.rtp.Preferences.IceCandidatePolicy;
 import com.kurento.apps.android.media.VideoStreamView;
 
 public class WebRtcSession extends MediaSession {
@@ -50,11 +55,16 @@ public class WebRtcSession extends MediaSession {
 	private static final Logger log = LoggerFactory
 			.getLogger(WebRtcSession.class.getSimpleName());
 
-	static final LooperThread webRtcLT = new LooperThread();
+	private static final int MAX_WORKERS = 4;
+	private static final long GLOBALS_TIMEOUT_MS = 10000;
 
-	static {
-		webRtcLT.start();
-	}
+	// Sessions run their WebRTC work on their own worker, up to MAX_WORKERS,
+	// so the slow teardown of one does not delay the setup of another.
+	private static final WebRtcWorkers workers = new WebRtcWorkers(
+			MAX_WORKERS);
+	// Released once initWebRtc() has set up the globals, which sessions on
+	// other workers must wait for.
+	private static final CountDownLatch globalsReady = new CountDownLatch(1);
 
 	private static boolean initiated = false;
 
@@ -63,20 +73,65 @@ public class WebRtcSession extends MediaSession {
 			return;
 		}
 
-		webRtcLT.post(new Runnable() {
+		final WebRtcWorkers.Worker worker = workers.acquire();
+		worker.post(new Runnable() {
 			@Override
 			public void run() {
 				PeerConnectionFactory.initializeAndroidGlobals(context
 						.getApplicationContext());
+				globalsReady.countDown();
+				workers.release(worker);
 			}
 		});
 
 		initiated = true;
 	}
 
-	private static final String DEFAULT_STUN_ADDRESS = "stun.l.google.com";
-	private static final int DEFAULT_STUN_PORT = 19302;
-	private static final String DEFAULT_STUN_PASSWORD = "";
+	/** Queue depth and task counters of every WebRTC worker. */
+	public static List<String> getWorkerMetrics() {
+		List<String> metrics = new ArrayList<String>();
+		for (WebRtcWorkers.Worker worker : workers.getWorkers()) {
+			metrics.add(worker.toString());
+		}
+		return metrics;
+	}
+
+	// Runs every WebRTC operation of this session, in order.
+	private final WebRtcWorkers.Worker worker = workers.acquire();
+	// Set once the media of the session is released. Worker only.
+	private boolean released = false;
+
+	// Offer prepared by warmUp(), or the error preparing it, and the callback
+	// of generateSdpOffer() if it was called while the offer was being
+	// prepared. Worker only.
+	private boolean warmingUp = false;
+	private volatile boolean warm = false;
+	private String preparedOffer;
+	private Exception preparedError;
+	private Callback<String> offerCallback;
+
+	// Milliseconds from start() to the first remote frame, or -1.
+	private volatile long timeToFirstFrameMs = -1;
+	private final Runnable firstRemoteFrame = new Runnable() {
+		@Override
+		public void run() {
+			long startTime = getStartTime();
+			if (startTime == -1 || timeToFirstFrameMs != -1) {
+				return;
+			}
+			timeToFirstFrameMs = (System.nanoTime() - startTime) / 1000000;
+			log.info("Time to first frame: " + timeToFirstFrameMs
+					+ " ms, pre-warmed: " + warm);
+		}
+	};
+
+	private final List<PeerConnection.IceServer> iceServers;
+	private final IceCandidatePolicy candidatePolicy;
+
+	// Snapshots kept by the stats collector, a minute at the default
+	// interval.
+	private static final int STATS_WINDOW = 12;
+	private final StatsCollector statsCollector;
 
 	private PeerConnection peerConnection;
 	private MediaStream localStream;
@@ -84,10 +139,26 @@ public class WebRtcSession extends MediaSession {
 
 	private PeerConnectionObserver peerConnectionObserver = new PeerConnectionObserver();
 
+	// Previews created by setLocalDisplay() and setRemoteDisplay(), released
+	// with their stream or with the session.
+	private final List<Preview> previews = new ArrayList<Preview>();
+
 	public WebRtcSession(Context ctx) {
 		super(ctx);
 
-		webRtcLT.post(new Runnable() {
+		iceServers = Preferences.getIceServers(ctx);
+		candidatePolicy = Preferences.getIceCandidatePolicy(ctx);
+		setIceMode(Preferences.getIceMode(ctx));
+
+		statsCollector = new StatsCollector(worker,
+				Preferences.getStatsIntervalMs(ctx), STATS_WINDOW);
+		// Internal storage needs no permission on any API level.
+		if (Preferences.isStatsLogEnabled(ctx)) {
+			statsCollector.setLogFile(new File(ctx.getFilesDir(),
+					"webrtc-stats-" + System.currentTimeMillis() + ".csv"));
+		}
+
+		worker.post(new Runnable() {
 			@Override
 			public void run() {
 				startSync();
@@ -95,6 +166,14 @@ public class WebRtcSession extends MediaSession {
 		});
 	}
 
+	/**
+	 * Stats of the PeerConnection, polled on the worker of the session once
+	 * ICE connects and until the media is released.
+	 */
+	public StatsCollector getStatsCollector() {
+		return statsCollector;
+	}
+
 	public void setLocalDisplay(ViewGroup viewGroup) {
 		setDisplay(viewGroup, localStream);
 	}
@@ -104,19 +183,28 @@ public class WebRtcSession extends MediaSession {
 	}
 
 	private void startSync() {
+		try {
+			if (!globalsReady
+					.await(GLOBALS_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+				log.error("WebRTC globals not initialized, call initWebRtc()");
+			}
+		} catch (InterruptedException e) {
+			log.error("Interrupted waiting for WebRTC globals", e);
+			Thread.currentThread().interrupt();
+		}
+
 		PeerConnectionFactory pcf = PeerConnectionFactorySingleton
 				.getInstance();
 
-		StringBuilder stunAddress = new StringBuilder();
-		stunAddress.append("stun:").append(DEFAULT_STUN_ADDRESS).append(":")
-				.append(DEFAULT_STUN_PORT);
-
-		log.debug("stun server: " + stunAddress.toString());
-		PeerConnection.IceServer stunServer = new PeerConnection.IceServer(
-				stunAddress.toString(), "", DEFAULT_STUN_PASSWORD);
-
-		List<PeerConnection.IceServer> iceServers = new ArrayList<PeerConnection.IceServer>();
-		iceServers.add(stunServer);
+		// Server reflexive and relay candidates would be dropped anyway.
+		List<PeerConnection.IceServer> iceServers = this.iceServers;
+		if (candidatePolicy == IceCandidatePolicy.HOST_ONLY) {
+			iceServers = new ArrayList<PeerConnection.IceServer>();
+		}
+		for (PeerConnection.IceServer server : iceServers) {
+			log.debug("ICE server: " + server.uri);
+		}
+		log.debug("ICE candidate policy: " + candidatePolicy);
 
 		MediaConstraints constraints = new MediaConstraints();
 		constraints.optional.add(new KeyValuePair("DtlsSrtpKeyAgreement",
@@ -139,19 +227,30 @@ public class WebRtcSession extends MediaSession {
 	}
 
 	private void releaseMediaSync() {
+		releasePreviewsSync(null);
+		statsCollector.stop();
+
 		if (peerConnection != null) {
 			peerConnection.close();
 			peerConnection.dispose();
 			peerConnection = null;
 			localStream = null;
+			remoteStream = null;
 		}
 
-		PeerConnectionFactorySingleton.disposeVideoSource();
+		// Later callbacks still run on the worker, which may now be bound to
+		// other sessions too.
+		if (!released) {
+			PeerConnectionFactorySingleton.releaseVideoSource();
+			workers.release(worker);
+			released = true;
+		}
+		offerCallback = null;
 	}
 
 	@Override
 	public void releaseMedia() {
-		webRtcLT.post(new Runnable() {
+		worker.post(new Runnable() {
 			@Override
 			public void run() {
 				releaseMediaSync();
@@ -186,6 +285,16 @@ public class WebRtcSession extends MediaSession {
 			@Override
 			public void onSetSuccess() {
 				log.debug("setLocalDescription onSuccess");
+				if (getIceMode() != IceMode.TRICKLE) {
+					// Sent once candidates are gathered.
+					return;
+				}
+				worker.post(new Runnable() {
+					@Override
+					public void run() {
+						peerConnectionObserver.sendLocalDescriptionSync();
+					}
+				});
 			}
 		}, sdp);
 	}
@@ -214,7 +323,7 @@ public class WebRtcSession extends MediaSession {
 			@Override
 			public void onCreateSuccess(final SessionDescription sdp) {
 				log.debug("createOffer onSuccess");
-				webRtcLT.post(new Runnable() {
+				worker.post(new Runnable() {
 					@Override
 					public void run() {
 						pcSetLocalDescriptionSync(sdp, callback);
@@ -236,14 +345,103 @@ public class WebRtcSession extends MediaSession {
 
 	@Override
 	public void generateSdpOffer(final Callback<String> callback) {
-		webRtcLT.post(new Runnable() {
+		worker.post(new Runnable() {
+			@Override
+			public void run() {
+				if (preparedOffer != null || preparedError != null) {
+					deliverPreparedOfferSync(callback);
+				} else if (warmingUp) {
+					offerCallback = callback;
+				} else {
+					createSdpOfferSync(callback);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Prepare the offer in the background, before start() is called, so that
+	 * gathering ICE candidates overlaps with the user deciding to start. The
+	 * PeerConnection and local tracks are already created by the constructor.
+	 * start() then sends the prepared offer, or waits for it if it is not
+	 * ready yet.
+	 */
+	public void warmUp() {
+		worker.post(new Runnable() {
 			@Override
 			public void run() {
-				createSdpOfferSync(callback);
+				// Too late once start() has asked for the offer.
+				if (warm || released || getStartTime() != -1) {
+					return;
+				}
+				warm = true;
+				warmingUp = true;
+				log.debug("Warming up session");
+
+				createSdpOfferSync(new Callback<String>() {
+					@Override
+					public void onSuccess(final String offer) {
+						worker.post(new Runnable() {
+							@Override
+							public void run() {
+								offerPreparedSync(offer, null);
+							}
+						});
+					}
+
+					@Override
+					public void onError(final Exception e) {
+						worker.post(new Runnable() {
+							@Override
+							public void run() {
+								offerPreparedSync(null, e);
+							}
+						});
+					}
+				});
 			}
 		});
 	}
 
+	/** Whether warmUp() was called on this session. */
+	public boolean isWarm() {
+		return warm;
+	}
+
+	/**
+	 * Milliseconds from start() to the first frame of the remote stream being
+	 * queued for display, or -1 if none has been yet.
+	 */
+	public long getTimeToFirstFrameMs() {
+		return timeToFirstFrameMs;
+	}
+
+	private void offerPreparedSync(String offer, Exception error) {
+		warmingUp = false;
+		preparedOffer = offer;
+		preparedError = error;
+		log.debug("Offer prepared" + (error != null ? " with error" : ""));
+
+		if (offerCallback != null) {
+			Callback<String> callback = offerCallback;
+			offerCallback = null;
+			deliverPreparedOfferSync(callback);
+		}
+	}
+
+	private void deliverPreparedOfferSync(Callback<String> callback) {
+		String offer = preparedOffer;
+		Exception error = preparedError;
+		preparedOffer = null;
+		preparedError = null;
+
+		if (error != null) {
+			callback.onError(error);
+		} else {
+			callback.onSuccess(offer);
+		}
+	}
+
 	private void pcCreateAnswerSync(final Callback<String> callback) {
 		if (peerConnection == null) {
 			log.error("PeerConnection is null. Cannot create answer");
@@ -261,7 +459,7 @@ public class WebRtcSession extends MediaSession {
 			@Override
 			public void onCreateSuccess(final SessionDescription sdp) {
 				log.debug("createAnswer onSuccess");
-				webRtcLT.post(new Runnable() {
+				worker.post(new Runnable() {
 					@Override
 					public void run() {
 						pcSetLocalDescriptionSync(sdp, callback);
@@ -289,7 +487,8 @@ public class WebRtcSession extends MediaSession {
 		}
 
 		final SessionDescription sdp = new SessionDescription(
-				SessionDescription.Type.OFFER, sdpOffer);
+				SessionDescription.Type.OFFER, IceCandidateFilter.filterSdp(
+						candidatePolicy, sdpOffer));
 
 		// FIXME
 		peerConnectionObserver.setSdpCallback(callback);
@@ -313,7 +512,7 @@ public class WebRtcSession extends MediaSession {
 			@Override
 			public void onSetSuccess() {
 				log.debug("setRemoteDescription onSuccess");
-				webRtcLT.post(new Runnable() {
+				worker.post(new Runnable() {
 					@Override
 					public void run() {
 						pcCreateAnswerSync(callback);
@@ -325,7 +524,7 @@ public class WebRtcSession extends MediaSession {
 
 	public void createSdpAnswer(final String sdpOffer,
 			final Callback<String> callback) {
-		webRtcLT.post(new Runnable() {
+		worker.post(new Runnable() {
 			@Override
 			public void run() {
 				createSdpAnswerSync(sdpOffer, callback);
@@ -341,7 +540,8 @@ public class WebRtcSession extends MediaSession {
 		}
 
 		final SessionDescription sdp = new SessionDescription(
-				SessionDescription.Type.ANSWER, sdpAnswer);
+				SessionDescription.Type.ANSWER, IceCandidateFilter.filterSdp(
+						candidatePolicy, sdpAnswer));
 
 		peerConnection.setRemoteDescription(new SdpObserver() {
 			@Override
@@ -371,7 +571,7 @@ public class WebRtcSession extends MediaSession {
 	@Override
 	public void processSdpAnswer(final Callback<Void> callback,
 			final String sdpAnswer) {
-		webRtcLT.post(new Runnable() {
+		worker.post(new Runnable() {
 			@Override
 			public void run() {
 				processSdpAnswerSync(sdpAnswer, callback);
@@ -391,6 +591,42 @@ public class WebRtcSession extends MediaSession {
 			this.sdpCalback = sdpCalback;
 		}
 
+		// Return the SDP callback and clear it, so the local description is
+		// only sent once.
+		private synchronized Callback<String> takeSdpCallback() {
+			Callback<String> c = sdpCalback;
+			sdpCalback = null;
+			return c;
+		}
+
+		// Hand the local description to the SDP callback: once candidates are
+		// gathered in FULL_GATHER mode, right after it is set in TRICKLE mode.
+		private void sendLocalDescriptionSync() {
+			Callback<String> c = takeSdpCallback();
+			if (c == null) {
+				log.error("There is not callback");
+				return;
+			}
+
+			if (peerConnection == null) {
+				String error = "PeerConnection is dispossed";
+				log.error(error);
+				c.onError(new Exception(error));
+				return;
+			}
+
+			String localDescription = peerConnection.getLocalDescription()
+					.description;
+			if (localDescription != null) {
+				c.onSuccess(IceCandidateFilter.filterSdp(candidatePolicy,
+						localDescription));
+			} else {
+				String error = "Local SDP is null";
+				log.error(error);
+				c.onError(new Exception(error));
+			}
+		}
+
 		@Override
 		public void onSignalingChange(SignalingState newState) {
 			log.debug("peerConnection onSignalingChange: " + newState);
@@ -402,39 +638,28 @@ public class WebRtcSession extends MediaSession {
 		}
 
 		@Override
-		public void onRemoveStream(MediaStream arg0) {
+		public void onRemoveStream(final MediaStream stream) {
 			log.debug("peerConnection onRemoveStream");
+			worker.post(new Runnable() {
+				@Override
+				public void run() {
+					if (remoteStream == stream) {
+						remoteStream = null;
+					}
+					releasePreviewsSync(stream);
+				}
+			});
 		}
 
 		@Override
 		public void onIceGatheringChange(IceGatheringState newState) {
 			log.debug("peerConnection onIceGatheringChange: " + newState);
-			if (IceGatheringState.COMPLETE.equals(newState)) {
-				webRtcLT.post(new Runnable() {
+			if (IceGatheringState.COMPLETE.equals(newState)
+					&& getIceMode() == IceMode.FULL_GATHER) {
+				worker.post(new Runnable() {
 					@Override
 					public void run() {
-						Callback<String> c = getSdpCallback();
-						if (c == null) {
-							log.error("There is not callback");
-							return;
-						}
-
-						if (peerConnection == null) {
-							String error = "PeerConnection is dispossed";
-							log.error(error);
-							c.onError(new Exception(error));
-							return;
-						}
-
-						String localDescription = peerConnection
-								.getLocalDescription().description;
-						if (localDescription != null) {
-							c.onSuccess(localDescription);
-						} else {
-							String error = "Local SDP is null";
-							log.error(error);
-							c.onError(new Exception(error));
-						}
+						sendLocalDescriptionSync();
 					}
 				});
 			}
@@ -443,11 +668,27 @@ public class WebRtcSession extends MediaSession {
 		@Override
 		public void onIceConnectionChange(IceConnectionState newState) {
 			log.debug("peerConnection onIceConnectionChange: " + newState);
+			if (newState == IceConnectionState.CONNECTED) {
+				worker.post(new Runnable() {
+					@Override
+					public void run() {
+						if (peerConnection != null) {
+							statsCollector.start(peerConnection);
+						}
+					}
+				});
+			}
 		}
 
 		@Override
 		public void onIceCandidate(IceCandidate candidate) {
 			log.debug("peerConnection onIceCandidate: " + candidate.sdp);
+			if (getIceMode() == IceMode.TRICKLE
+					&& IceCandidateFilter.accepts(candidatePolicy,
+							candidate.sdp)) {
+				sendIceCandidate(candidate.sdpMid, candidate.sdpMLineIndex,
+						candidate.sdp);
+			}
 		}
 
 		@Override
@@ -471,16 +712,21 @@ public class WebRtcSession extends MediaSession {
 	// TODO: improve names and create an external class to export these
 	// utilities
 
-	private static void setDisplay(ViewGroup viewGroup, MediaStream stream) {
+	private void setDisplay(ViewGroup viewGroup, MediaStream stream) {
 		if (stream == null || !(viewGroup.getContext() instanceof Activity))
 			return;
 		Activity activity = (Activity) viewGroup.getContext();
 		VideoStreamView sv = getVideoStreamViewFromActivity(activity);
 
-		Preview preview = new Preview(viewGroup.getContext(), sv);
+		Preview preview = new Preview(viewGroup.getContext(), sv, stream,
+				stream == remoteStream ? firstRemoteFrame : null);
+
+		if (stream.videoTracks.size() > 0) {
+			preview.attach(stream.videoTracks.get(0));
+		}
 
-		if (stream != null && stream.videoTracks.size() > 0) {
-			stream.videoTracks.get(0).addRenderer(new VideoRenderer(preview));
+		synchronized (previews) {
+			previews.add(preview);
 		}
 
 		viewGroup.addView(preview, new ViewGroup.LayoutParams(
@@ -488,6 +734,29 @@ public class WebRtcSession extends MediaSession {
 				ViewGroup.LayoutParams.MATCH_PARENT));
 	}
 
+	/**
+	 * Release the previews of |stream|, or every preview if it is null. Must
+	 * be called on the worker of the session, before the tracks of the stream
+	 * are disposed.
+	 */
+	private void releasePreviewsSync(MediaStream stream) {
+		List<Preview> released = new ArrayList<Preview>();
+
+		synchronized (previews) {
+			for (int i = previews.size() - 1; i >= 0; i--) {
+				Preview preview = previews.get(i);
+				if (stream == null || preview.stream == stream) {
+					previews.remove(i);
+					released.add(preview);
+				}
+			}
+		}
+
+		for (Preview preview : released) {
+			preview.release();
+		}
+	}
+
 	private static final int STREAM_ID = 10000;
 
 	private static VideoStreamView getVideoStreamViewFromActivity(
@@ -522,14 +791,58 @@ public class WebRtcSession extends MediaSession {
 
 		private final int streamId;
 		private final VideoStreamView sv;
+		private final MediaStream stream;
+
+		// Run on the first frame, if not null.
+		private final Runnable firstFrameListener;
 
-		Preview(Context c, VideoStreamView sv) {
+		private VideoTrack track;
+		private VideoRenderer renderer;
+		private volatile boolean released = false;
+		private boolean framesSeen = false;
+
+		Preview(Context c, VideoStreamView sv, MediaStream stream,
+				Runnable firstFrameListener) {
 			super(c);
 
 			this.sv = sv;
+			this.stream = stream;
+			this.firstFrameListener = firstFrameListener;
 			streamId = sv.registerStream();
 		}
 
+		void attach(VideoTrack track) {
+			this.track = track;
+			renderer = new VideoRenderer(this);
+			track.addRenderer(renderer);
+		}
+
+		/**
+		 * Stop rendering |track|, give the stream slot back to the view and
+		 * remove the preview from its parent.
+		 */
+		void release() {
+			released = true;
+
+			if (track != null) {
+				track.removeRenderer(renderer);
+				track = null;
+				renderer = null;
+			}
+
+			sv.unregisterStream(streamId);
+
+			post(new Runnable() {
+				@Override
+				public void run() {
+					ViewParent parent = getParent();
+					if (parent instanceof ViewGroup) {
+						((ViewGroup) parent).removeView(Preview.this);
+					}
+				}
+			});
+		}
+
 		@Override
 		protected void onLayout(boolean changed, int l, int t, int r, int b) {
 			if (!changed)
@@ -544,7 +857,18 @@ public class WebRtcSession extends MediaSession {
 
 		@Override
 		public void renderFrame(I420Frame frame) {
+			// A frame racing with release() is dropped by the view, which
+			// does not hand the id out again.
+			if (released)
+				return;
 			sv.queueFrame(streamId, frame);
+
+			if (!framesSeen) {
+				framesSeen = true;
+				if (firstFrameListener != null) {
+					firstFrameListener.run();
+				}
+			}
 		}
 
 		@Override
@@ -552,7 +876,8 @@ public class WebRtcSession extends MediaSession {
 			sv.queueEvent(new Runnable() {
 				@Override
 				public void run() {
-					sv.setSize(streamId, width, height);
+					if (!released)
+						sv.setSize(streamId, width, height);
 				}
 			});
 		}
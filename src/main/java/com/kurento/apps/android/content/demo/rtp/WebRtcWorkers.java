@@ -0,0 +1,162 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package com.kurento.apps.android.content.demo.rtp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded pool of LooperThreads running the WebRTC work of sessions. Each
+ * session is bound to one worker for its whole life, so its operations run in
+ * order, while sessions bound to different workers run in parallel. A new
+ * worker is started only when every existing one already serves a session;
+ * past |maxWorkers|, sessions share the least busy worker.
+ */
+final class WebRtcWorkers {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(WebRtcWorkers.class.getSimpleName());
+
+	/** A worker thread with counters of the tasks posted to it. */
+	static final class Worker {
+
+		private final LooperThread thread = new LooperThread();
+		private final int index;
+		// Tasks posted and not finished yet, including the running one.
+		private final AtomicInteger queueDepth = new AtomicInteger();
+		private final AtomicInteger maxQueueDepth = new AtomicInteger();
+		private final AtomicLong postedTasks = new AtomicLong();
+		// Sessions bound to the worker. Guarded by the pool.
+		private int sessions = 0;
+
+		private Worker(int index) {
+			this.index = index;
+			thread.setName("WebRtcWorker-" + index);
+			thread.start();
+		}
+
+		/** Run |r| on the worker, after every task posted before. */
+		boolean post(final Runnable r) {
+			int depth = queueDepth.incrementAndGet();
+			int max = maxQueueDepth.get();
+			while (depth > max && !maxQueueDepth.compareAndSet(max, depth)) {
+				max = maxQueueDepth.get();
+			}
+			postedTasks.incrementAndGet();
+
+			boolean posted = thread.post(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						r.run();
+					} finally {
+						queueDepth.decrementAndGet();
+					}
+				}
+			});
+			if (!posted) {
+				queueDepth.decrementAndGet();
+			}
+			return posted;
+		}
+
+		/**
+		 * Run |r| on the worker once |delayMillis| have elapsed. It only
+		 * counts as queued from then on.
+		 */
+		boolean postDelayed(final Runnable r, long delayMillis) {
+			return thread.postDelayed(new Runnable() {
+				@Override
+				public void run() {
+					post(r);
+				}
+			}, delayMillis);
+		}
+
+		int getIndex() {
+			return index;
+		}
+
+		int getQueueDepth() {
+			return queueDepth.get();
+		}
+
+		int getMaxQueueDepth() {
+			return maxQueueDepth.get();
+		}
+
+		long getPostedTasks() {
+			return postedTasks.get();
+		}
+
+		@Override
+		public String toString() {
+			return "worker " + index + " queue depth/max: " + getQueueDepth()
+					+ "/" + getMaxQueueDepth() + ", posted tasks: "
+					+ getPostedTasks();
+		}
+	}
+
+	private final int maxWorkers;
+	private final List<Worker> workers = new ArrayList<Worker>();
+
+	WebRtcWorkers(int maxWorkers) {
+		if (maxWorkers < 1) {
+			throw new IllegalArgumentException("Invalid number of workers: "
+					+ maxWorkers);
+		}
+		this.maxWorkers = maxWorkers;
+	}
+
+	/**
+	 * Bind a session to the worker serving the fewest sessions, starting a
+	 * new one if all of them serve some and the pool is not full.
+	 */
+	synchronized Worker acquire() {
+		Worker best = null;
+		for (Worker worker : workers) {
+			if (best == null || worker.sessions < best.sessions) {
+				best = worker;
+			}
+		}
+
+		if (best == null
+				|| (best.sessions > 0 && workers.size() < maxWorkers)) {
+			best = new Worker(workers.size());
+			workers.add(best);
+			log.debug("Started WebRTC worker " + best.index);
+		}
+		best.sessions++;
+		return best;
+	}
+
+	/** Unbind a session from |worker|. Tasks already posted still run. */
+	synchronized void release(Worker worker) {
+		if (worker.sessions > 0) {
+			worker.sessions--;
+		}
+	}
+
+	/** Workers started so far. */
+	synchronized List<Worker> getWorkers() {
+		return new ArrayList<Worker>(workers);
+	}
+
+}
@@ -0,0 +1,25 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package com.kurento.apps.android.media;
+
+/**
+ * When the render loop calls glGetError(), which stalls the pipeline on many
+ * drivers. ALWAYS checks after every upload and draw, SAMPLED once every few
+ * frames, NEVER only while setting up the GL context. GL error flags stay set
+ * until read, so a sampled check still catches every error, just later.
+ */
+public enum ErrorCheck {
+	ALWAYS, SAMPLED, NEVER;
+}
@@ -0,0 +1,124 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package com.kurento.apps.android.media;
+
+import java.nio.ByteBuffer;
+
+import org.webrtc.VideoRenderer.I420Frame;
+
+/**
+ * Downsamples I420 frames by 2 or 4 in each direction with a box filter, for
+ * streams drawn much smaller than their frames. Keeps scratch rows across
+ * frames, so each instance must only be used by one thread at a time, i.e.
+ * by the producer of one stream.
+ */
+final class FrameDecimator {
+
+	private static final int[] FACTORS = { 4, 2 };
+
+	private byte[] rows = new byte[0];
+	private byte[] out = new byte[0];
+	// Geometry of the last decimated frame, only read by FramePool.
+	private I420Frame geometry;
+
+	/**
+	 * Largest factor by which a |frameWidth|x|frameHeight| frame can be
+	 * decimated and still cover a |destWidth|x|destHeight| rectangle, or 1.
+	 */
+	static int chooseFactor(int frameWidth, int frameHeight, int destWidth,
+			int destHeight) {
+		if (destWidth <= 0 || destHeight <= 0) {
+			return 1;
+		}
+		for (int factor : FACTORS) {
+			if (frameWidth / factor >= destWidth
+					&& frameHeight / factor >= destHeight) {
+				return factor;
+			}
+		}
+		return 1;
+	}
+
+	/**
+	 * A frame describing |source| decimated by |factor|, to take a frame of
+	 * the right geometry from the pool. Its planes are left null: I420Frame
+	 * would allocate direct buffers for them if given no array.
+	 */
+	I420Frame geometry(I420Frame source, int factor) {
+		int width = source.width / factor & ~1;
+		int height = source.height / factor & ~1;
+		if (geometry == null || geometry.width != width
+				|| geometry.height != height) {
+			geometry = new I420Frame(width, height, new int[] { width,
+					width / 2, width / 2 }, new ByteBuffer[3]);
+		}
+		return geometry;
+	}
+
+	/**
+	 * Average each |factor|x|factor| block of the planes of |source| into a
+	 * pixel of |dest|, which must have the geometry returned by geometry().
+	 */
+	void decimate(I420Frame source, I420Frame dest, int factor) {
+		for (int i = 0; i < 3; ++i) {
+			int width = i == 0 ? dest.width : dest.width / 2;
+			int height = i == 0 ? dest.height : dest.height / 2;
+			decimatePlane(source.yuvPlanes[i], source.yuvStrides[i],
+					dest.yuvPlanes[i], dest.yuvStrides[i], width, height,
+					factor);
+		}
+	}
+
+	// Write |height| rows of |width| averaged pixels to |dest|, reading
+	// |factor| rows of |source| at a time in bulk.
+	private void decimatePlane(ByteBuffer source, int sourceStride,
+			ByteBuffer dest, int destStride, int width, int height,
+			int factor) {
+		int rowBytes = width * factor;
+		if (rows.length < rowBytes * factor) {
+			rows = new byte[rowBytes * factor];
+		}
+		if (out.length < width) {
+			out = new byte[width];
+		}
+
+		int shift = factor == 4 ? 4 : 2;
+		int round = 1 << (shift - 1);
+		for (int y = 0; y < height; y++) {
+			for (int r = 0; r < factor; r++) {
+				source.position((y * factor + r) * sourceStride);
+				source.get(rows, r * rowBytes, rowBytes);
+			}
+
+			for (int x = 0; x < width; x++) {
+				int sum = 0;
+				for (int r = 0; r < factor; r++) {
+					int base = r * rowBytes + x * factor;
+					for (int c = 0; c < factor; c++) {
+						sum += rows[base + c] & 0xff;
+					}
+				}
+				out[x] = (byte) ((sum + round) >> shift);
+			}
+
+			dest.position(y * destStride);
+			dest.put(out, 0, width);
+		}
+
+		source.rewind();
+		dest.rewind();
+	}
+
+}
@@ -0,0 +1,36 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package com.kurento.apps.android.media;
+
+/**
+ * Pixel layout of the frames of a stream. I420 frames have Y, U and V planes;
+ * NV12 and NV21 frames have a Y plane and a plane of interleaved U/V (NV12) or
+ * V/U (NV21) samples, and are queued as I420Frames built by
+ * VideoStreamView.semiPlanarFrame(). Semi-planar frames are uploaded as they
+ * are and converted by their own shader.
+ */
+public enum FrameFormat {
+	I420(3), NV12(2), NV21(2);
+
+	private final int planes;
+
+	private FrameFormat(int planes) {
+		this.planes = planes;
+	}
+
+	int planes() {
+		return planes;
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package com.kurento.apps.android.media;
+
+import org.webrtc.VideoRenderer.I420Frame;
+
+/**
+ * Lends a frame owned by the caller of VideoRenderer.Callbacks.renderFrame()
+ * to the render thread without copying it. The frame is only valid until
+ * renderFrame() returns, so the producer blocks in lend() until the render
+ * thread has uploaded it. If the render thread does not pick the frame up in
+ * time the loan is cancelled and the producer falls back to copying; once
+ * the render thread has taken the frame the producer always waits for it to
+ * be released.
+ */
+final class FrameHandoff {
+
+	private static final int IDLE = 0;
+	private static final int PENDING = 1;
+	private static final int TAKEN = 2;
+
+	private int state = IDLE;
+	private I420Frame frame;
+	private long queuedAt;
+
+	/**
+	 * Lend |frame| and wait up to |timeoutNanos| for the render thread to take
+	 * it. Return false if it was not taken, in which case the render thread
+	 * will never touch it. |render| is run once the frame is pending.
+	 */
+	boolean lend(I420Frame frame, long queuedAt, long timeoutNanos,
+			Runnable render) {
+		synchronized (this) {
+			this.frame = frame;
+			this.queuedAt = queuedAt;
+			state = PENDING;
+		}
+
+		render.run();
+
+		boolean interrupted = false;
+		try {
+			synchronized (this) {
+				long deadline = System.nanoTime() + timeoutNanos;
+				while (state == PENDING) {
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						break;
+					}
+					try {
+						wait(remaining / 1000000, (int) (remaining % 1000000));
+					} catch (InterruptedException e) {
+						interrupted = true;
+						break;
+					}
+				}
+
+				if (state == PENDING) {
+					state = IDLE;
+					this.frame = null;
+					return false;
+				}
+
+				// The render thread owns the frame now: it must be released
+				// before we return it to its caller.
+				while (state == TAKEN) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+				return true;
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/** Take the lent frame, if any. release() must follow. */
+	synchronized I420Frame take() {
+		if (state != PENDING) {
+			return null;
+		}
+		state = TAKEN;
+		return frame;
+	}
+
+	/** Whether a frame is lent and waiting to be taken. */
+	synchronized boolean isPending() {
+		return state == PENDING;
+	}
+
+	/** When the frame returned by the last take() was lent. */
+	synchronized long getQueuedAt() {
+		return queuedAt;
+	}
+
+	/** Give the frame returned by take() back to the producer. */
+	synchronized void release() {
+		state = IDLE;
+		frame = null;
+		notifyAll();
+	}
+
+}
@@ -0,0 +1,91 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package com.kurento.apps.android.media;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Frames of one stream waiting to be uploaded by the render thread. With the
+ * LATEST_ONLY policy the mailbox is a single slot that producers overwrite;
+ * with BOUNDED_QUEUE it keeps up to |depth| frames (rounded up to a power of
+ * two) and drops the oldest one when full. Displaced frames go straight back
+ * to the pool, so a stalled render thread never keeps more than the mailbox
+ * capacity checked out.
+ */
+final class FrameMailbox {
+
+	private final DropPolicy policy;
+	private final AtomicReference<PooledFrame> slot;
+	private final FrameRing<PooledFrame> queue;
+
+	FrameMailbox(DropPolicy policy, int depth) {
+		this.policy = policy;
+		if (policy == DropPolicy.LATEST_ONLY) {
+			slot = new AtomicReference<PooledFrame>();
+			queue = null;
+		} else {
+			slot = null;
+			queue = new FrameRing<PooledFrame>(depth);
+		}
+	}
+
+	DropPolicy getPolicy() {
+		return policy;
+	}
+
+	/** Post |frame|, returning any frame it displaces to |pool|. */
+	void post(PooledFrame frame, FramePool pool, RenderMetrics metrics) {
+		if (slot != null) {
+			PooledFrame displaced = slot.getAndSet(frame);
+			if (displaced != null) {
+				metrics.recordMailboxDrop();
+				pool.returnFrame(displaced);
+			}
+			return;
+		}
+
+		while (!queue.offer(frame)) {
+			PooledFrame displaced = queue.poll();
+			if (displaced != null) {
+				metrics.recordMailboxDrop();
+				pool.returnFrame(displaced);
+			}
+		}
+	}
+
+	/** Take the next frame to upload, or null if there is none. */
+	PooledFrame take() {
+		if (slot != null) {
+			return slot.getAndSet(null);
+		}
+		return queue.poll();
+	}
+
+	boolean isEmpty() {
+		if (slot != null) {
+			return slot.get() == null;
+		}
+		return queue.isEmpty();
+	}
+
+	/** Return every pending frame to |pool|. */
+	void clear(FramePool pool) {
+		PooledFrame frame;
+		while ((frame = take()) != null) {
+			pool.returnFrame(frame);
+		}
+	}
+
+}
@@ -0,0 +1,482 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package com.kurento.apps.android.media;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.webrtc.VideoRenderer.I420Frame;
+
+/**
+ * The path of frames from the producers of each stream to a RenderBackend:
+ * stream registry and layout, frame pool, drop policies, hand-off, decimation
+ * and metrics. Has no Android dependencies, so it runs off-device with a
+ * HeadlessRenderBackend.
+ */
+public class FramePipeline {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(FramePipeline.class.getSimpleName());
+
+	private static final long DEFAULT_HANDOFF_TIMEOUT_NS = 20000000;
+
+	// A stream id is its slot in the registry in the low bits, and in the
+	// high bits how many times the slot was freed before, so that the id of
+	// an unregistered stream is not given to the next one.
+	private static final int SLOT_BITS = 16;
+	private static final int SLOT_MASK = (1 << SLOT_BITS) - 1;
+	private static final int GENERATION_MASK = 0x7fff;
+
+	/**
+	 * Takes the frames handed over by uploadPending() to |target|, e.g.
+	 * textures, on the render thread.
+	 */
+	interface FrameSink<T> {
+
+		void upload(I420Frame frame, FrameFormat format, T target);
+
+		/** Time spent on each plane by the last upload(). */
+		long[] getUploadNanos();
+	}
+
+	/**
+	 * A registered stream. Its state shared across threads is published
+	 * through volatile fields; width and height are only touched on the
+	 * render thread.
+	 */
+	public final class Stream {
+		// Set before the stream is published in the registry.
+		int id;
+		final RenderMetrics metrics = new RenderMetrics(
+				FramePipeline.this.metrics);
+		final FrameMailbox mailbox;
+		final FrameHandoff handoff = new FrameHandoff();
+		volatile HandoffMode handoffMode = HandoffMode.COPY;
+		// Frame geometry set by setSize().
+		int width = -1;
+		int height = -1;
+		// Published by setStreamDimensions().
+		volatile StreamLayout layout = StreamLayout.NONE;
+		volatile boolean removed = false;
+		// Whether frames much larger than the layout are decimated before
+		// being queued.
+		volatile boolean decimate = false;
+		volatile FrameFormat format = FrameFormat.I420;
+		// Only used by the producer in queueFrame().
+		final FrameDecimator decimator = new FrameDecimator();
+		private volatile Object backendData;
+
+		private final Runnable queuedRequest = new Runnable() {
+			@Override
+			public void run() {
+				backend.frameQueued(Stream.this);
+			}
+		};
+
+		private Stream(DropPolicy policy, int queueDepth) {
+			mailbox = new FrameMailbox(policy, queueDepth);
+		}
+
+		/** State attached by the backend in RenderBackend.streamAdded(). */
+		public Object getBackendData() {
+			return backendData;
+		}
+
+		public void setBackendData(Object data) {
+			backendData = data;
+		}
+	}
+
+	private final RenderBackend backend;
+	private final FramePool framePool;
+	private final PlaneCopier planeCopier = PlaneCopier.getDefault();
+	private final RenderMetrics metrics = new RenderMetrics();
+	private long lastFPSLogTime = System.nanoTime();
+	private long numFramesSinceLastLog = 0;
+
+	// Set while a draw is requested but has not started yet, so that the
+	// frames of all streams arriving in between are covered by one draw.
+	private final AtomicBoolean drawPending = new AtomicBoolean();
+
+	// Copy-on-write registry indexed by slot, with null for free slots:
+	// the render loop reads the current snapshot without locking;
+	// registerStream() and unregisterStream() publish a new array under
+	// |streamsLock|.
+	private volatile Stream[] streams = new Stream[0];
+	private final Object streamsLock = new Object();
+	// Generation of each slot of |streams|. Guarded by |streamsLock|.
+	private int[] generations = new int[0];
+
+	/**
+	 * |framePoolDepth| is the maximum number of frames of each geometry kept
+	 * in flight between queueFrame() and the upload.
+	 */
+	public FramePipeline(RenderBackend backend, int framePoolDepth) {
+		this.backend = backend;
+		framePool = new FramePool(framePoolDepth);
+	}
+
+	/**
+	 * See VideoStreamView.registerStream(DropPolicy, int). Ids are not reused
+	 * right away, so a late frame queued for an unregistered stream is
+	 * dropped instead of reaching the stream registered after it.
+	 */
+	public int registerStream(DropPolicy policy, int queueDepth) {
+		Stream stream = new Stream(policy, queueDepth);
+		backend.streamAdded(stream);
+
+		synchronized (streamsLock) {
+			Stream[] current = streams;
+			int slot = 0;
+			while (slot < current.length && current[slot] != null) {
+				slot++;
+			}
+			if (slot > SLOT_MASK) {
+				throw new IllegalStateException("Too many streams");
+			}
+
+			if (slot == generations.length) {
+				int[] grown = new int[slot + 1];
+				System.arraycopy(generations, 0, grown, 0, slot);
+				generations = grown;
+			}
+			stream.id = generations[slot] << SLOT_BITS | slot;
+
+			Stream[] next = new Stream[Math.max(current.length, slot + 1)];
+			System.arraycopy(current, 0, next, 0, current.length);
+			next[slot] = stream;
+			streams = next;
+			return stream.id;
+		}
+	}
+
+	/** See VideoStreamView.unregisterStream(int). */
+	public void unregisterStream(int streamId) {
+		Stream stream;
+		boolean empty = true;
+
+		synchronized (streamsLock) {
+			stream = getStream(streamId);
+			if (stream == null) {
+				log.warn("Stream " + streamId + " is not registered");
+				return;
+			}
+
+			int slot = streamId & SLOT_MASK;
+			Stream[] next = streams.clone();
+			next[slot] = null;
+			streams = next;
+			generations[slot] = (generations[slot] + 1) & GENERATION_MASK;
+			for (Stream s : next) {
+				empty &= s == null;
+			}
+		}
+
+		stream.removed = true;
+		stream.mailbox.clear(framePool);
+		backend.streamRemoved(stream);
+		// Draws, which evict idle frame geometries, may not happen again.
+		if (empty) {
+			framePool.evictAll();
+		} else {
+			framePool.evictIdle();
+		}
+		scheduleDraw();
+	}
+
+	// Return null if |streamId| is not registered.
+	Stream getStream(int streamId) {
+		Stream[] current = streams;
+		int slot = streamId & SLOT_MASK;
+		if (streamId < 0 || slot >= current.length) {
+			return null;
+		}
+		Stream stream = current[slot];
+		return stream != null && stream.id == streamId ? stream : null;
+	}
+
+	/**
+	 * Current registry snapshot, indexed by slot with null for free slots. A
+	 * new array is published on every change, so comparing snapshots tells
+	 * whether streams were added or removed.
+	 */
+	Stream[] getStreams() {
+		return streams;
+	}
+
+	/**
+	 * Place the stream registered as |streamId| in a |width|x|height|
+	 * rectangle at |xPos|,|yPos| of a surface of |surfaceWidth|x|surfaceHeight|
+	 * at |surfaceX|,|surfaceY|, all in window coordinates. Return whether it
+	 * fits in the surface.
+	 */
+	public boolean setStreamDimensions(int streamId, int width, int height,
+			int xPos, int yPos, int surfaceX, int surfaceY, int surfaceWidth,
+			int surfaceHeight) {
+		Stream stream = getStream(streamId);
+		if (stream == null) {
+			log.warn("Stream " + streamId + " is not registered");
+			return false;
+		}
+
+		StreamLayout layout = StreamLayout.compute(width, height, xPos, yPos,
+				surfaceX, surfaceY, surfaceWidth, surfaceHeight);
+		if (layout == null) {
+			log.error("Widget out of surface gl boundaries");
+			return false;
+		}
+
+		log.debug("Stream: " + streamId + " layout: " + layout);
+		stream.layout = layout;
+		scheduleDraw();
+		return true;
+	}
+
+	/**
+	 * Inform the pipeline of the dimensions of frames coming from |stream|.
+	 * Must run on the render thread. Return whether the stream is registered.
+	 */
+	public boolean setSize(int streamId, int width, int height) {
+		Stream stream = getStream(streamId);
+		if (stream == null) {
+			log.warn("Stream " + streamId + " is not registered");
+			return false;
+		}
+		stream.width = width;
+		stream.height = height;
+		return true;
+	}
+
+	/** See VideoStreamView.setDecimation(int, boolean). */
+	public void setDecimation(int streamId, boolean enabled) {
+		Stream stream = getStream(streamId);
+		if (stream != null) {
+			stream.decimate = enabled;
+		}
+	}
+
+	/** See VideoStreamView.setStreamFormat(int, FrameFormat). */
+	public void setStreamFormat(int streamId, FrameFormat format) {
+		Stream stream = getStream(streamId);
+		if (stream != null) {
+			stream.format = format;
+		}
+	}
+
+	/** See VideoStreamView.setHandoffMode(int, HandoffMode). */
+	public void setHandoffMode(int streamId, HandoffMode mode) {
+		Stream stream = getStream(streamId);
+		if (stream != null) {
+			stream.handoffMode = mode;
+		}
+	}
+
+	/** Bytes of native memory reserved for pooled frame planes. */
+	public long getFrameMemoryReserved() {
+		return framePool.getReservedBytes();
+	}
+
+	/** Bytes of native memory held by pooled frames. */
+	public long getFrameMemoryInUse() {
+		return framePool.getUsedBytes();
+	}
+
+	/** See VideoStreamView.setFrameMemoryBudget(long, long). */
+	public void setFrameMemoryBudget(long byteBudget, long idleTimeoutMs) {
+		framePool.setByteBudget(byteBudget);
+		framePool.setIdleTimeout(idleTimeoutMs);
+	}
+
+	/** Counters of the whole pipeline, covering all of its streams. */
+	public RenderMetrics.Snapshot getMetrics() {
+		return metrics.snapshot();
+	}
+
+	RenderMetrics getRenderMetrics() {
+		return metrics;
+	}
+
+	/** Counters of the stream registered as |streamId|. */
+	public RenderMetrics.Snapshot getStreamMetrics(int streamId) {
+		Stream stream = getStream(streamId);
+		if (stream == null) {
+			throw new IllegalArgumentException("Stream " + streamId
+					+ " is not registered");
+		}
+		return stream.metrics.snapshot();
+	}
+
+	/**
+	 * Queue |frame| to be uploaded. In DIRECT hand-off mode this blocks until
+	 * the frame has been uploaded.
+	 */
+	public void queueFrame(int streamId, I420Frame frame) {
+		if (!FramePool.validateDimensions(frame)) {
+			throw new RuntimeException("Frame too large!");
+		}
+
+		long queuedAt = System.nanoTime();
+		Stream stream = getStream(streamId);
+		if (stream == null) {
+			return;
+		}
+
+		int factor = 1;
+		if (stream.decimate && stream.format == FrameFormat.I420) {
+			StreamLayout layout = stream.layout;
+			factor = FrameDecimator.chooseFactor(frame.width, frame.height,
+					layout.width, layout.height);
+		}
+
+		// Lending blocks this thread until the frame is uploaded, so it is
+		// only worth it if the backend takes the frame right away.
+		if (factor == 1 && stream.handoffMode == HandoffMode.DIRECT) {
+			if (!backend.takesLentFrames(stream)) {
+				stream.metrics.recordHandoffSkip();
+			} else if (stream.handoff.lend(frame, queuedAt,
+					DEFAULT_HANDOFF_TIMEOUT_NS, stream.queuedRequest)) {
+				stream.metrics.recordHandoff(System.nanoTime() - queuedAt,
+						FramePool.frameSize(frame));
+				return;
+			} else {
+				stream.metrics.recordHandoffTimeout();
+			}
+		}
+
+		// Paying for the copy of the YUV data here allows CSC and painting time
+		// to get spent on the render thread instead of the UI thread.
+		PooledFrame frameCopy = framePool.takeFrame(
+				factor == 1 ? frame : stream.decimator.geometry(frame, factor),
+				stream.metrics);
+		if (frameCopy == null) {
+			log.warn("Frame will not be shown");
+			return;
+		}
+
+		if (factor == 1) {
+			if (planeCopier.isParallel(frame)) {
+				stream.metrics.recordParallelCopy();
+			}
+			stream.metrics.recordCopy(planeCopier.copy(frame, frameCopy.frame),
+					FramePool.frameSize(frame));
+		} else {
+			long copyStart = System.nanoTime();
+			stream.decimator.decimate(frame, frameCopy.frame, factor);
+			stream.metrics.recordDecimation();
+			stream.metrics.recordCopy(System.nanoTime() - copyStart, 0);
+		}
+		frameCopy.queuedAt = queuedAt;
+		stream.mailbox.post(frameCopy, framePool, stream.metrics);
+
+		// The stream may have been unregistered meanwhile.
+		if (stream.removed) {
+			stream.mailbox.clear(framePool);
+			return;
+		}
+		backend.frameQueued(stream);
+	}
+
+	/**
+	 * Request a draw from the backend unless one is already pending. Producers
+	 * of several streams may call this many times per draw.
+	 */
+	void scheduleDraw() {
+		if (drawPending.compareAndSet(false, true)) {
+			backend.requestDraw();
+		} else {
+			metrics.recordCoalescedRender();
+		}
+	}
+
+	/**
+	 * Called by the backend when a draw starts, before taking any frame: a
+	 * frame posted from now on requests another draw. Return the start time.
+	 */
+	long beginDraw() {
+		drawPending.set(false);
+		return System.nanoTime();
+	}
+
+	/**
+	 * Called by the backend when the draw started at |drawStart| is done, to
+	 * record its time and the frame rate.
+	 */
+	void endDraw(long drawStart) {
+		++numFramesSinceLastLog;
+		long now = System.nanoTime();
+		metrics.recordDraw(now - drawStart);
+		if (lastFPSLogTime == -1 || now - lastFPSLogTime > 1e9) {
+			double fps = numFramesSinceLastLog / ((now - lastFPSLogTime) / 1e9);
+			log.debug("Rendered FPS: " + fps);
+			metrics.setRenderedFps(fps);
+			lastFPSLogTime = now;
+			numFramesSinceLastLog = 1;
+			framePool.evictIdle();
+		}
+	}
+
+	/** Whether |stream| has frames left to upload. */
+	boolean hasPending(Stream stream) {
+		return !stream.mailbox.isEmpty() || stream.handoff.isPending();
+	}
+
+	/**
+	 * Hand the next pending frame of |stream|, if any, to |sink| to be
+	 * uploaded to |target|, and return whether anything was uploaded. A frame
+	 * lent in DIRECT mode is newer than any copied one, so it is uploaded
+	 * last. Frames are released even if |sink| throws.
+	 */
+	<T> boolean uploadPending(Stream stream, FrameSink<T> sink, T target) {
+		boolean uploaded = false;
+
+		PooledFrame frame = stream.mailbox.take();
+		if (frame != null) {
+			try {
+				stream.metrics.recordQueueToUpload(System.nanoTime()
+						- frame.queuedAt);
+				sink.upload(frame.frame, stream.format, target);
+				stream.metrics.recordUpload(sink.getUploadNanos());
+			} finally {
+				framePool.returnFrame(frame);
+			}
+			uploaded = true;
+		}
+
+		I420Frame lent = stream.handoff.take();
+		if (lent != null) {
+			try {
+				stream.metrics.recordQueueToUpload(System.nanoTime()
+						- stream.handoff.getQueuedAt());
+				sink.upload(lent, stream.format, target);
+				stream.metrics.recordUpload(sink.getUploadNanos());
+			} finally {
+				stream.handoff.release();
+			}
+			uploaded = true;
+		}
+
+		return uploaded;
+	}
+
+	/**
+	 * Drop the pending frames of |stream|, e.g. from the render thread once
+	 * the backend has released it.
+	 */
+	void clearPending(Stream stream) {
+		stream.mailbox.clear(framePool);
+	}
+
+}
@@ -27,9 +27,7 @@
 
 package com.kurento.apps.android.media;
 
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,65 +35,296 @@ import org.webrtc.VideoRenderer.I420Frame;
 
 /**
  * This class acts as an allocation pool meant to minimize GC churn caused by
- * frame allocation & disposal. The public API comprises of just two methods:
- * copyFrame(), which allocates as necessary and copies, and returnFrame(),
- * which returns frame ownership to the pool for use by a later call to
- * copyFrame().
+ * frame allocation & disposal. Frame planes are carved out of the slabs of a
+ * PlaneAllocator. The public API comprises of just two methods:
+ * takeFrame(), which allocates as necessary, and returnFrame(), which returns
+ * frame ownership to the pool for use by a later call to takeFrame().
  * 
- * This class is thread-safe; calls to copyFrame() and returnFrame() are allowed
- * to happen on any thread.
+ * This class is thread-safe and lock-free on the steady-state path; calls to
+ * takeFrame() and returnFrame() are allowed to happen on any thread. Frames of
+ * each geometry (see summarizeFrameDimensions()) are kept in their own bounded
+ * ring, and at most |depth| frames are ever created for a given geometry.
+ * 
+ * Geometries that have not been used for the idle timeout are evicted, and so
+ * are the least recently used ones whenever a new frame would exceed the byte
+ * budget. Frames of an evicted geometry still owned by a client are freed
+ * when they are returned.
  */
 class FramePool {
 
 	private static final Logger log = LoggerFactory.getLogger(FramePool.class
 			.getSimpleName());
 
-	// Maps each summary code (see summarizeFrameDimensions()) to a list of
-	// frames of that description.
-	private final Map<Long, LinkedList<I420Frame>> availableFrames = new HashMap<Long, LinkedList<I420Frame>>();
-	private final Map<Long, Integer> nFramesCreated = new HashMap<Long, Integer>();
-
 	// Every dimension (e.g. width, height, stride) of a frame must be less than
 	// this value.
 	private static final long MAX_DIMENSION = 4096;
-	private static final long MAX_N_FRAMES = 2;
 
-	public I420Frame takeFrame(I420Frame source) {
+	static final int DEFAULT_DEPTH = 3;
+	static final long DEFAULT_BYTE_BUDGET = 32 * 1024 * 1024;
+	static final long DEFAULT_IDLE_TIMEOUT_MS = 5000;
+
+	private static final Bucket[] NO_BUCKETS = new Bucket[0];
+
+	// Frames of one geometry. |created| counts the frames handed out by the
+	// pool, whether they are currently in |frames| or owned by a client.
+	static final class Bucket {
+		private final long desc;
+		private final FrameRing<PooledFrame> frames;
+		private final AtomicInteger created = new AtomicInteger(0);
+		private volatile long lastUsed = System.nanoTime();
+		private volatile boolean retired = false;
+
+		private Bucket(long desc, int depth) {
+			this.desc = desc;
+			this.frames = new FrameRing<PooledFrame>(depth);
+		}
+	}
+
+	private final int depth;
+	private final PlaneAllocator allocator;
+	private volatile long byteBudget = DEFAULT_BYTE_BUDGET;
+	private volatile long idleTimeoutNanos = DEFAULT_IDLE_TIMEOUT_MS * 1000000;
+
+	// Copy-on-write array of buckets. Readers scan it without locking; it is
+	// only replaced, under |bucketsLock|, when a geometry shows up or is
+	// evicted.
+	private volatile Bucket[] buckets = NO_BUCKETS;
+	private final Object bucketsLock = new Object();
+
+	FramePool() {
+		this(DEFAULT_DEPTH);
+	}
+
+	/** |depth| is the maximum number of frames created per geometry. */
+	FramePool(int depth) {
+		this(depth, new PlaneAllocator());
+	}
+
+	FramePool(int depth, PlaneAllocator allocator) {
+		if (depth < 1) {
+			throw new IllegalArgumentException("Pool depth must be positive");
+		}
+		this.depth = depth;
+		this.allocator = allocator;
+	}
+
+	int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * Bytes of frame planes the pool tries not to exceed. A geometry in use is
+	 * always allowed one frame, even over budget.
+	 */
+	void setByteBudget(long byteBudget) {
+		if (byteBudget < 0) {
+			throw new IllegalArgumentException("Negative byte budget");
+		}
+		this.byteBudget = byteBudget;
+	}
+
+	/** Geometries unused for |idleTimeoutMs| are evicted by evictIdle(). */
+	void setIdleTimeout(long idleTimeoutMs) {
+		if (idleTimeoutMs < 0) {
+			throw new IllegalArgumentException("Negative idle timeout");
+		}
+		this.idleTimeoutNanos = idleTimeoutMs * 1000000;
+	}
+
+	/**
+	 * Take a frame able to hold |source|, recording the outcome in |metrics|.
+	 */
+	public PooledFrame takeFrame(I420Frame source, RenderMetrics metrics) {
 		long desc = summarizeFrameDimensions(source);
+		Bucket bucket = getOrCreateBucket(desc);
+		bucket.lastUsed = System.nanoTime();
+
+		PooledFrame frame = bucket.frames.poll();
+		if (frame != null) {
+			metrics.recordPoolHit();
+			return frame;
+		}
+		metrics.recordPoolMiss();
+
+		int nFrames = bucket.created.get();
+		boolean fits = fitsInBudget(bucket, frameSize(source));
+		if (!fits && nFrames > 0) {
+			log.warn("Frame pool over budget (" + byteBudget + " bytes)");
+			metrics.recordOverflowDrop();
+			return null;
+		}
+
+		for (;;) {
+			if (nFrames >= depth) {
+				log.warn("Overflow max frames created (" + depth + ")");
+				metrics.recordOverflowDrop();
+				return null;
+			}
+			if (bucket.created.compareAndSet(nFrames, nFrames + 1)) {
+				metrics.recordAllocation();
+				return createFrame(source, bucket);
+			}
+			nFrames = bucket.created.get();
+		}
+	}
+
+	public void returnFrame(PooledFrame frame) {
+		Bucket bucket = frame.bucket;
+		if (bucket.retired) {
+			releaseFrame(frame);
+			return;
+		}
+
+		if (!bucket.frames.offer(frame)) {
+			throw new IllegalArgumentException("Frame not taken from pool");
+		}
+
+		// The bucket may have been evicted while we were offering.
+		if (bucket.retired) {
+			drain(bucket);
+		}
+	}
+
+	/** Evict the geometries that have been idle for the idle timeout. */
+	void evictIdle() {
+		long now = System.nanoTime();
+		long timeout = idleTimeoutNanos;
+
+		for (Bucket bucket : buckets) {
+			if (now - bucket.lastUsed > timeout) {
+				evict(bucket);
+			}
+		}
+	}
+
+	/**
+	 * Evict every geometry and drop the slabs left empty, e.g. once no stream
+	 * is left to take frames.
+	 */
+	void evictAll() {
+		for (Bucket bucket : buckets) {
+			evict(bucket);
+		}
+		allocator.releaseUnused();
+	}
+
+	/** Bytes of native memory reserved for frame planes. */
+	long getReservedBytes() {
+		return allocator.getReservedBytes();
+	}
+
+	/** Bytes of native memory backing frames created by this pool. */
+	long getUsedBytes() {
+		return allocator.getUsedBytes();
+	}
+
+	// Evict least recently used geometries other than |bucket| until a new
+	// frame of |size| bytes fits in the budget.
+	private boolean fitsInBudget(Bucket bucket, long size) {
+		long budget = byteBudget;
+
+		while (allocator.getUsedBytes() + size > budget) {
+			Bucket lru = null;
+			for (Bucket candidate : buckets) {
+				if (candidate != bucket
+						&& (lru == null || candidate.lastUsed < lru.lastUsed)) {
+					lru = candidate;
+				}
+			}
 
-		synchronized (availableFrames) {
-			LinkedList<I420Frame> frames = availableFrames.get(desc);
-			if (frames == null) {
-				frames = new LinkedList<I420Frame>();
-				availableFrames.put(desc, frames);
-				nFramesCreated.put(desc, 0);
+			if (lru == null) {
+				return false;
 			}
-			if (!frames.isEmpty()) {
-				return frames.pop();
-			} else {
-				int nFrames = nFramesCreated.get(desc);
-				if (nFrames > MAX_N_FRAMES) {
-					log.warn("Overflow max frames created (" + MAX_N_FRAMES
-							+ ")");
-					return null;
-				} else {
-					nFramesCreated.put(desc, nFrames + 1);
-					return new I420Frame(source.width, source.height,
-							source.yuvStrides, null);
+			evict(lru);
+		}
+
+		return true;
+	}
+
+	private void evict(Bucket bucket) {
+		synchronized (bucketsLock) {
+			Bucket[] current = buckets;
+			int index = -1;
+			for (int i = 0; i < current.length; i++) {
+				if (current[i] == bucket) {
+					index = i;
+					break;
 				}
 			}
+			if (index < 0) {
+				return;
+			}
+
+			Bucket[] next = new Bucket[current.length - 1];
+			System.arraycopy(current, 0, next, 0, index);
+			System.arraycopy(current, index + 1, next, index, next.length
+					- index);
+			bucket.retired = true;
+			buckets = next;
+		}
+
+		log.debug("Evicting frame geometry " + bucket.desc);
+		drain(bucket);
+		allocator.trimTo(byteBudget);
+	}
+
+	private void drain(Bucket bucket) {
+		PooledFrame frame;
+		while ((frame = bucket.frames.poll()) != null) {
+			releaseFrame(frame);
+		}
+	}
+
+	private void releaseFrame(PooledFrame frame) {
+		frame.bucket.created.decrementAndGet();
+		allocator.free(frame.block);
+	}
+
+	private PooledFrame createFrame(I420Frame source, Bucket bucket) {
+		int[] strides = source.yuvStrides.clone();
+		PlaneAllocator.Block block = allocator.allocate(new int[] {
+				strides[0] * source.height, strides[1] * source.height / 2,
+				strides[2] * source.height / 2 });
+		I420Frame frame = new I420Frame(source.width, source.height, strides,
+				block.planes);
+
+		return new PooledFrame(frame, bucket, block);
+	}
+
+	/** Bytes of the planes of |frame|. */
+	static long frameSize(I420Frame frame) {
+		return (long) frame.yuvStrides[0] * frame.height
+				+ (long) frame.yuvStrides[1] * frame.height / 2
+				+ (long) frame.yuvStrides[2] * frame.height / 2;
+	}
+
+	private Bucket findBucket(long desc) {
+		Bucket[] current = buckets;
+		for (int i = 0; i < current.length; i++) {
+			if (current[i].desc == desc) {
+				return current[i];
+			}
 		}
+		return null;
 	}
 
-	public void returnFrame(I420Frame frame) {
-		long desc = summarizeFrameDimensions(frame);
-		synchronized (availableFrames) {
-			LinkedList<I420Frame> frames = availableFrames.get(desc);
-			if (frames == null) {
-				throw new IllegalArgumentException(
-						"Unexpected frame dimensions");
+	private Bucket getOrCreateBucket(long desc) {
+		Bucket bucket = findBucket(desc);
+		if (bucket != null) {
+			return bucket;
+		}
+
+		synchronized (bucketsLock) {
+			bucket = findBucket(desc);
+			if (bucket == null) {
+				Bucket[] current = buckets;
+				Bucket[] next = new Bucket[current.length + 1];
+				System.arraycopy(current, 0, next, 0, current.length);
+				bucket = new Bucket(desc, depth);
+				next[current.length] = bucket;
+				buckets = next;
 			}
-			frames.add(frame);
+			return bucket;
 		}
 	}
 
@@ -0,0 +1,115 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package com.kurento.apps.android.media;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded multi-producer multi-consumer ring buffer. Each slot carries a
+ * sequence number that tells producers and consumers whether it is free or
+ * full for the current lap, so offer() and poll() only need a CAS on the
+ * shared cursor and never take a lock nor allocate.
+ *
+ * The capacity is rounded up to the next power of two.
+ */
+final class FrameRing<T> {
+
+	private final int mask;
+	private final AtomicReferenceArray<T> elements;
+	private final AtomicLongArray sequences;
+
+	private final AtomicLong head = new AtomicLong(0);
+	private final AtomicLong tail = new AtomicLong(0);
+
+	FrameRing(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be positive");
+		}
+
+		int size = 1;
+		while (size < capacity) {
+			size <<= 1;
+		}
+
+		mask = size - 1;
+		elements = new AtomicReferenceArray<T>(size);
+		sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+	}
+
+	int capacity() {
+		return mask + 1;
+	}
+
+	/** Return false, without blocking, if the ring is full. */
+	boolean offer(T element) {
+		long pos = tail.get();
+		int index;
+
+		for (;;) {
+			index = (int) (pos & mask);
+			long diff = sequences.get(index) - pos;
+			if (diff == 0) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					break;
+				}
+				pos = tail.get();
+			} else if (diff < 0) {
+				return false;
+			} else {
+				pos = tail.get();
+			}
+		}
+
+		elements.lazySet(index, element);
+		sequences.set(index, pos + 1);
+		return true;
+	}
+
+	/** Return null, without blocking, if the ring is empty. */
+	T poll() {
+		long pos = head.get();
+		int index;
+
+		for (;;) {
+			index = (int) (pos & mask);
+			long diff = sequences.get(index) - (pos + 1);
+			if (diff == 0) {
+				if (head.compareAndSet(pos, pos + 1)) {
+					break;
+				}
+				pos = head.get();
+			} else if (diff < 0) {
+				return null;
+			} else {
+				pos = head.get();
+			}
+		}
+
+		T element = elements.get(index);
+		elements.lazySet(index, null);
+		sequences.set(index, pos + mask + 1);
+		return element;
+	}
+
+	boolean isEmpty() {
+		return tail.get() == head.get();
+	}
+
+}
@@ -0,0 +1,164 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package com.kurento.apps.android.media;
+
+import java.nio.ByteBuffer;
+
+import org.webrtc.VideoRenderer.I420Frame;
+
+import android.opengl.GLES20;
+
+/**
+ * Uploads the YUV planes of frames to stream textures on the thread whose
+ * EGL context owns |glState| and |textureManager|. Holds the scratch state of
+ * the uploads, so each GL thread needs its own instance.
+ */
+final class FrameUploader implements
+		FramePipeline.FrameSink<TextureManager.Textures> {
+
+	// Padded planes are repacked when padding exceeds 1/MAX_PADDING_RATIO of
+	// the visible row.
+	private static final int MAX_PADDING_RATIO = 4;
+
+	private final GLStateCache glState;
+	private final TextureManager textureManager;
+	private final long[] uploadNanos = new long[3];
+	private final int[] rowWidths = new int[3];
+	private ByteBuffer repackBuffer;
+
+	FrameUploader(GLStateCache glState, TextureManager textureManager) {
+		this.glState = glState;
+		this.textureManager = textureManager;
+	}
+
+	GLStateCache getGLState() {
+		return glState;
+	}
+
+	TextureManager getTextureManager() {
+		return textureManager;
+	}
+
+	/** Time spent uploading each Y/U/V plane by the last upload(). */
+	@Override
+	public long[] getUploadNanos() {
+		return uploadNanos;
+	}
+
+	// Upload the planes from |frame|, holding pixels of |format|, to
+	// |textures|. Texture storage is only reallocated if the frame does not
+	// match the format and geometry the textures were allocated for.
+	//
+	// GLES2 has no GL_UNPACK_ROW_LENGTH, so row-padded planes are either
+	// uploaded whole and cropped in texture coordinates, or repacked into a
+	// tight buffer first (see uploadPadded()).
+	@Override
+	public void upload(I420Frame frame, FrameFormat format,
+			TextureManager.Textures textures) {
+		int planes = format.planes();
+		boolean padded = uploadPadded(frame, planes);
+		int[] rowWidths = this.rowWidths;
+		tightRowWidths(format, frame.width, rowWidths);
+		if (padded) {
+			for (int i = 0; i < planes; ++i) {
+				rowWidths[i] = frame.yuvStrides[i]
+						/ TextureManager.bytesPerTexel(TextureManager
+								.textureFormat(format, i));
+			}
+		}
+
+		textureManager.ensure(textures, format, frame.width, frame.height,
+				rowWidths);
+		// Unpack alignment is per context and defaults to 4, but chroma rows
+		// of odd-width frames and semi-planar rows need not be 4-byte aligned.
+		glState.unpackAlignment(1);
+
+		uploadNanos[2] = 0;
+		for (int i = 0; i < planes; ++i) {
+			long uploadStart = System.nanoTime();
+			int glFormat = TextureManager.textureFormat(format, i);
+			int rowBytes = rowWidths[i]
+					* TextureManager.bytesPerTexel(glFormat);
+			int h = i == 0 ? frame.height : frame.height / 2;
+			ByteBuffer plane = frame.yuvPlanes[i];
+			if (rowBytes != frame.yuvStrides[i]) {
+				plane = repack(plane, frame.yuvStrides[i], rowBytes, h);
+			}
+			glState.activeTexture(GLES20.GL_TEXTURE0 + i);
+			glState.bindTexture(textures.ids[i]);
+			GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, rowWidths[i],
+					h, glFormat, GLES20.GL_UNSIGNED_BYTE, plane);
+			glState.countIssued(1);
+			uploadNanos[i] = System.nanoTime() - uploadStart;
+		}
+	}
+
+	/**
+	 * Store in |rowWidths| the texels per row of the textures of unpadded
+	 * |width|-wide frames of |format|, 0 for the planes it does not use.
+	 */
+	static void tightRowWidths(FrameFormat format, int width, int[] rowWidths) {
+		int planes = format.planes();
+		for (int i = 0; i < 3; ++i) {
+			rowWidths[i] = i >= planes ? 0 : i == 0 ? width : width / 2;
+		}
+	}
+
+	// Whether |frame| can be uploaded with its row padding and cropped in
+	// texture coordinates. All planes must keep the same visible fraction of
+	// their rows, as they share texture coordinates, and the padding must be
+	// small: repacking copies the whole plane, so sending the padding to the
+	// GPU is cheaper only while it is a small part of each row.
+	//
+	// The chroma plane of semi-planar frames holds two bytes per texel, so it
+	// is padded like the luma plane when both share the same stride.
+	private static boolean uploadPadded(I420Frame frame, int planes) {
+		int w = frame.width;
+		int[] strides = frame.yuvStrides;
+
+		if (planes == 2) {
+			return strides[1] == strides[0] && strides[0] % 2 == 0
+					&& (strides[0] - w) * MAX_PADDING_RATIO <= w;
+		}
+
+		int cw = frame.width / 2;
+		return (long) w * strides[1] == (long) cw * strides[0]
+				&& (long) w * strides[2] == (long) cw * strides[0]
+				&& (strides[0] - w) * MAX_PADDING_RATIO <= w;
+	}
+
+	// Copy the |width| visible bytes of the |height| rows of |plane| into a
+	// tight buffer reused across frames.
+	private ByteBuffer repack(ByteBuffer plane, int stride, int width,
+			int height) {
+		int size = width * height;
+		if (repackBuffer == null || repackBuffer.capacity() < size) {
+			repackBuffer = ByteBuffer.allocateDirect(size);
+		}
+
+		ByteBuffer tight = repackBuffer;
+		tight.clear();
+		for (int row = 0; row < height; row++) {
+			plane.limit(row * stride + width);
+			plane.position(row * stride);
+			tight.put(plane);
+		}
+		plane.clear();
+		tight.flip();
+
+		return tight;
+	}
+
+}
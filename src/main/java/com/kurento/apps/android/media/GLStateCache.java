@@ -0,0 +1,214 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package com.kurento.apps.android.media;
+
+import java.nio.Buffer;
+import java.util.Arrays;
+
+import android.opengl.GLES20;
+
+/**
+ * Remembers the GL state set through it and drops the calls that would not
+ * change it. Calls that are not cached are passed through so that every GL
+ * call of the render loop is counted; takeIssuedCalls() and
+ * takeSkippedCalls() return the counts since the last call.
+ *
+ * The cache only knows about state set through it, so all state changes of
+ * its thread must go through it, and invalidate() must be called when a new
+ * EGL context is created. Only used on the thread whose context it mirrors.
+ */
+final class GLStateCache {
+
+	private static final int MAX_UNITS = 8;
+	private static final int MAX_ATTRIBS = 32;
+	private static final int UNKNOWN = -1;
+
+	private int activeUnit;
+	private final int[] boundTextures = new int[MAX_UNITS];
+	// Bit i set if attribute array i is known to be enabled.
+	private int enabledAttribs;
+	private int program;
+	private int arrayBuffer;
+	private boolean clearColorKnown;
+	private float clearRed, clearGreen, clearBlue, clearAlpha;
+	private int unpackAlignment;
+
+	private int issued = 0;
+	private int skipped = 0;
+
+	GLStateCache() {
+		invalidate();
+	}
+
+	/** Forget all state, e.g. because a new EGL context was created. */
+	void invalidate() {
+		activeUnit = UNKNOWN;
+		Arrays.fill(boundTextures, UNKNOWN);
+		enabledAttribs = 0;
+		program = UNKNOWN;
+		arrayBuffer = UNKNOWN;
+		clearColorKnown = false;
+		unpackAlignment = UNKNOWN;
+	}
+
+	/**
+	 * Forget the texture bindings, e.g. because another context sharing
+	 * textures with this one may have deleted and reused their names.
+	 */
+	void invalidateTextures() {
+		Arrays.fill(boundTextures, UNKNOWN);
+	}
+
+	void activeTexture(int unit) {
+		if (unit == activeUnit) {
+			skipped++;
+			return;
+		}
+		GLES20.glActiveTexture(unit);
+		activeUnit = unit;
+		issued++;
+	}
+
+	/** Bind |texture| to GL_TEXTURE_2D of the active unit. */
+	void bindTexture(int texture) {
+		int index = activeUnit - GLES20.GL_TEXTURE0;
+		boolean cached = activeUnit != UNKNOWN && index >= 0
+				&& index < MAX_UNITS;
+		if (cached && boundTextures[index] == texture) {
+			skipped++;
+			return;
+		}
+		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+		if (cached) {
+			boundTextures[index] = texture;
+		}
+		issued++;
+	}
+
+	/** Delete textures, which also unbinds them from every unit. */
+	void deleteTextures(int n, int[] textures, int offset) {
+		GLES20.glDeleteTextures(n, textures, offset);
+		for (int i = 0; i < MAX_UNITS; i++) {
+			for (int j = offset; j < offset + n; j++) {
+				if (boundTextures[i] == textures[j]) {
+					boundTextures[i] = 0;
+				}
+			}
+		}
+		issued++;
+	}
+
+	void enableVertexAttribArray(int index) {
+		boolean cached = index >= 0 && index < MAX_ATTRIBS;
+		if (cached && (enabledAttribs & (1 << index)) != 0) {
+			skipped++;
+			return;
+		}
+		GLES20.glEnableVertexAttribArray(index);
+		if (cached) {
+			enabledAttribs |= 1 << index;
+		}
+		issued++;
+	}
+
+	void useProgram(int program) {
+		if (program == this.program) {
+			skipped++;
+			return;
+		}
+		GLES20.glUseProgram(program);
+		this.program = program;
+		issued++;
+	}
+
+	/** Bind |buffer| to GL_ARRAY_BUFFER. */
+	void bindArrayBuffer(int buffer) {
+		if (buffer == arrayBuffer) {
+			skipped++;
+			return;
+		}
+		GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffer);
+		arrayBuffer = buffer;
+		issued++;
+	}
+
+	void clearColor(float red, float green, float blue, float alpha) {
+		if (clearColorKnown && red == clearRed && green == clearGreen
+				&& blue == clearBlue && alpha == clearAlpha) {
+			skipped++;
+			return;
+		}
+		GLES20.glClearColor(red, green, blue, alpha);
+		clearRed = red;
+		clearGreen = green;
+		clearBlue = blue;
+		clearAlpha = alpha;
+		clearColorKnown = true;
+		issued++;
+	}
+
+	void unpackAlignment(int alignment) {
+		if (alignment == unpackAlignment) {
+			skipped++;
+			return;
+		}
+		GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, alignment);
+		unpackAlignment = alignment;
+		issued++;
+	}
+
+	void vertexAttribPointer(int index, int size, int stride, Buffer data) {
+		GLES20.glVertexAttribPointer(index, size, GLES20.GL_FLOAT, false,
+				stride, data);
+		issued++;
+	}
+
+	/** Point |index| at |offset| bytes into the bound array buffer. */
+	void vertexAttribPointer(int index, int size, int stride, int offset) {
+		GLES20.glVertexAttribPointer(index, size, GLES20.GL_FLOAT, false,
+				stride, offset);
+		issued++;
+	}
+
+	void uniform2f(int location, float x, float y) {
+		GLES20.glUniform2f(location, x, y);
+		issued++;
+	}
+
+	void drawArrays(int mode, int first, int count) {
+		GLES20.glDrawArrays(mode, first, count);
+		issued++;
+	}
+
+	/** Count |calls| GL calls issued directly, not through this cache. */
+	void countIssued(int calls) {
+		issued += calls;
+	}
+
+	/** GL calls issued since the last call. */
+	int takeIssuedCalls() {
+		int calls = issued;
+		issued = 0;
+		return calls;
+	}
+
+	/** Redundant GL calls dropped since the last call. */
+	int takeSkippedCalls() {
+		int calls = skipped;
+		skipped = 0;
+		return calls;
+	}
+
+}
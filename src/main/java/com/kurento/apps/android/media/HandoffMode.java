@@ -0,0 +1,28 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package com.kurento.apps.android.media;
+
+/**
+ * How frames reach the render thread. COPY copies each frame into a pooled
+ * frame and returns at once; DIRECT lends the caller's frame to the backend
+ * and blocks until it has been uploaded, saving the copy. DIRECT only lends
+ * frames the backend takes right away (see
+ * RenderBackend.takesLentFrames()), e.g. VideoStreamView with an upload
+ * thread; other frames are copied, and so is a frame not picked up within the
+ * hand-off timeout.
+ */
+public enum HandoffMode {
+	COPY, DIRECT;
+}
@@ -0,0 +1,228 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package com.kurento.apps.android.media;
+
+import java.util.Arrays;
+
+import org.webrtc.VideoRenderer.I420Frame;
+
+/**
+ * A RenderBackend drawing on the CPU into an ARGB buffer in memory, to run the
+ * frame pipeline without a device or GL context, e.g. in benchmarks.
+ *
+ * Each frame taken from a stream is converted by a YuvConverter into an
+ * image of its own, and every draw scales the images of all streams into the
+ * buffer at their layout, nearest neighbour, like VideoStreamView draws
+ * their textures. The pipeline metrics then cover every stage: copy on the
+ * producer, queue to upload, conversion (as the upload time of the Y plane)
+ * and the whole draw.
+ *
+ * There is no render thread: draws are requested through isDrawRequested(),
+ * and run by the caller with drawFrame(), always on the same thread. Frames of
+ * DIRECT streams are copied unless setTakesLentFrames() is enabled.
+ */
+public class HeadlessRenderBackend implements RenderBackend {
+
+	// Last frame converted for a stream.
+	private static final class Image {
+		private int[] argb = new int[0];
+		private int width = -1;
+		private int height = -1;
+	}
+
+	private final class Converter implements FramePipeline.FrameSink<Image> {
+		private final long[] uploadNanos = new long[3];
+
+		@Override
+		public void upload(I420Frame frame, FrameFormat format, Image image) {
+			long start = System.nanoTime();
+			int size = frame.width * frame.height;
+			if (image.argb.length < size) {
+				image.argb = new int[size];
+			}
+			image.width = frame.width;
+			image.height = frame.height;
+			converter.convert(frame, format, image.argb, frame.width);
+			uploadNanos[0] = System.nanoTime() - start;
+		}
+
+		@Override
+		public long[] getUploadNanos() {
+			return uploadNanos;
+		}
+	}
+
+	private final int width;
+	private final int height;
+	private final int[] pixels;
+	private final YuvConverter converter;
+	private final Converter sink = new Converter();
+	private final FramePipeline pipeline;
+	private volatile boolean drawRequested = false;
+	private volatile boolean takesLentFrames = false;
+	// Source column of each column of the stream being scaled.
+	private int[] columns = new int[0];
+
+	/** Draw into a |width|x|height| buffer, converting on the draw thread. */
+	public HeadlessRenderBackend(int width, int height) {
+		this(width, height, FramePool.DEFAULT_DEPTH, new YuvConverter());
+	}
+
+	/**
+	 * Draw into a |width|x|height| buffer with |converter|. |framePoolDepth|
+	 * is passed to the FramePipeline.
+	 */
+	public HeadlessRenderBackend(int width, int height, int framePoolDepth,
+			YuvConverter converter) {
+		if (width <= 0 || height <= 0) {
+			throw new IllegalArgumentException("Invalid size: " + width + "x"
+					+ height);
+		}
+		this.width = width;
+		this.height = height;
+		this.converter = converter;
+		pixels = new int[width * height];
+		pipeline = new FramePipeline(this, framePoolDepth);
+	}
+
+	/**
+	 * Pipeline feeding this backend. Its surface is at 0,0 of the window, so
+	 * stream dimensions are set relative to the buffer.
+	 */
+	public FramePipeline getPipeline() {
+		return pipeline;
+	}
+
+	/** Place |streamId| in the buffer; see FramePipeline. */
+	public boolean setStreamDimensions(int streamId, int width, int height,
+			int xPos, int yPos) {
+		return pipeline.setStreamDimensions(streamId, width, height, xPos,
+				yPos, 0, 0, this.width, this.height);
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * The 0xAARRGGBB pixels drawn by the last drawFrame(), in rows of
+	 * getWidth() pixels. Only valid on the draw thread.
+	 */
+	public int[] getPixels() {
+		return pixels;
+	}
+
+	/** Whether frames or layout changes are waiting for drawFrame(). */
+	public boolean isDrawRequested() {
+		return drawRequested;
+	}
+
+	/**
+	 * Whether frames of DIRECT streams are lent rather than copied. Only
+	 * enable it while another thread keeps calling drawIfRequested(), since
+	 * the producer is blocked until its frame is drawn.
+	 */
+	public void setTakesLentFrames(boolean takesLentFrames) {
+		this.takesLentFrames = takesLentFrames;
+	}
+
+	/** Run drawFrame() if a draw was requested, and return whether it did. */
+	public boolean drawIfRequested() {
+		if (!drawRequested) {
+			return false;
+		}
+		drawFrame();
+		return true;
+	}
+
+	/**
+	 * Convert the next pending frame of every stream and draw all of them.
+	 * Bounded queues hand out one frame per draw, so a draw is requested
+	 * again while frames are left.
+	 */
+	public void drawFrame() {
+		drawRequested = false;
+		long drawStart = pipeline.beginDraw();
+		// Transparent black, like the GL clear color.
+		Arrays.fill(pixels, 0);
+
+		for (FramePipeline.Stream stream : pipeline.getStreams()) {
+			if (stream == null) {
+				continue;
+			}
+			Image image = (Image) stream.getBackendData();
+			pipeline.uploadPending(stream, sink, image);
+			if (pipeline.hasPending(stream)) {
+				pipeline.scheduleDraw();
+			}
+			if (image.width > 0 && stream.layout.width > 0) {
+				scale(image, stream.layout);
+			}
+		}
+
+		pipeline.endDraw(drawStart);
+	}
+
+	// Scale |image| into the |layout| rectangle of the buffer.
+	private void scale(Image image, StreamLayout layout) {
+		int w = Math.min(layout.width, width - layout.x);
+		int h = Math.min(layout.height, height - layout.y);
+		if (columns.length < w) {
+			columns = new int[w];
+		}
+		for (int x = 0; x < w; x++) {
+			columns[x] = (int) ((long) x * image.width / layout.width);
+		}
+
+		for (int y = 0; y < h; y++) {
+			int from = (int) ((long) y * image.height / layout.height)
+					* image.width;
+			int to = (layout.y + y) * width + layout.x;
+			for (int x = 0; x < w; x++) {
+				pixels[to + x] = image.argb[from + columns[x]];
+			}
+		}
+	}
+
+	@Override
+	public void streamAdded(FramePipeline.Stream stream) {
+		stream.setBackendData(new Image());
+	}
+
+	@Override
+	public void streamRemoved(FramePipeline.Stream stream) {
+		// Images are left to the garbage collector.
+	}
+
+	@Override
+	public void frameQueued(FramePipeline.Stream stream) {
+		pipeline.scheduleDraw();
+	}
+
+	@Override
+	public boolean takesLentFrames(FramePipeline.Stream stream) {
+		return takesLentFrames;
+	}
+
+	@Override
+	public void requestDraw() {
+		drawRequested = true;
+	}
+
+}
@@ -0,0 +1,193 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package com.kurento.apps.android.media;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Slab allocator for frame planes. Planes are carved out of large direct
+ * buffers reserved up front instead of allocating one direct buffer per plane,
+ * which keeps native memory from fragmenting and does not depend on the GC to
+ * finalize buffers when the frame geometry changes.
+ *
+ * Each slab is a bump allocator: blocks are handed out from its top and the
+ * whole slab is rewound once every block carved from it has been freed, so
+ * empty slabs are reused by whatever geometry comes next.
+ *
+ * Allocation only happens on pool misses, so methods just synchronize on the
+ * allocator.
+ */
+class PlaneAllocator {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(PlaneAllocator.class.getSimpleName());
+
+	static final int DEFAULT_SLAB_SIZE = 4 * 1024 * 1024;
+
+	// Planes start on cache line boundaries.
+	private static final int ALIGNMENT = 64;
+
+	private static final class Slab {
+		private final ByteBuffer memory;
+		private int top = 0;
+		private int live = 0;
+
+		private Slab(int size) {
+			memory = ByteBuffer.allocateDirect(size);
+		}
+
+		private int capacity() {
+			return memory.capacity();
+		}
+	}
+
+	/** Planes carved from one slab; give it back with free(). */
+	static final class Block {
+		private final Slab slab;
+		private final int size;
+		final ByteBuffer[] planes;
+
+		private Block(Slab slab, int size, ByteBuffer[] planes) {
+			this.slab = slab;
+			this.size = size;
+			this.planes = planes;
+		}
+
+		int size() {
+			return size;
+		}
+	}
+
+	private final int slabSize;
+	private final ArrayList<Slab> slabs = new ArrayList<Slab>();
+	private long reservedBytes = 0;
+	private long usedBytes = 0;
+
+	PlaneAllocator() {
+		this(DEFAULT_SLAB_SIZE);
+	}
+
+	PlaneAllocator(int slabSize) {
+		if (slabSize < ALIGNMENT) {
+			throw new IllegalArgumentException("Slab size too small: "
+					+ slabSize);
+		}
+		this.slabSize = slabSize;
+	}
+
+	/** Allocate one contiguous block holding planes of |planeSizes| bytes. */
+	synchronized Block allocate(int[] planeSizes) {
+		int size = 0;
+		for (int planeSize : planeSizes) {
+			size += align(planeSize);
+		}
+
+		Slab slab = findSlab(size);
+		int offset = slab.top;
+		ByteBuffer[] planes = new ByteBuffer[planeSizes.length];
+		for (int i = 0; i < planeSizes.length; i++) {
+			planes[i] = slice(slab.memory, offset, planeSizes[i]);
+			offset += align(planeSizes[i]);
+		}
+
+		slab.top += size;
+		slab.live++;
+		usedBytes += size;
+
+		return new Block(slab, size, planes);
+	}
+
+	synchronized void free(Block block) {
+		Slab slab = block.slab;
+		if (slab.live <= 0) {
+			throw new IllegalStateException("Block freed twice");
+		}
+
+		usedBytes -= block.size;
+		if (--slab.live == 0) {
+			slab.top = 0;
+		}
+	}
+
+	/** Drop the slabs that currently hold no block. */
+	synchronized void releaseUnused() {
+		trimTo(0);
+	}
+
+	/**
+	 * Drop slabs holding no block until at most |maxReservedBytes| are
+	 * reserved. Empty slabs within the limit are kept for reuse.
+	 */
+	synchronized void trimTo(long maxReservedBytes) {
+		for (int i = slabs.size() - 1; i >= 0
+				&& reservedBytes > maxReservedBytes; i--) {
+			Slab slab = slabs.get(i);
+			if (slab.live == 0) {
+				slabs.remove(i);
+				reservedBytes -= slab.capacity();
+			}
+		}
+	}
+
+	/** Bytes of native memory reserved in slabs. */
+	synchronized long getReservedBytes() {
+		return reservedBytes;
+	}
+
+	/** Bytes of the reserved slabs currently handed out in blocks. */
+	synchronized long getUsedBytes() {
+		return usedBytes;
+	}
+
+	private Slab findSlab(int size) {
+		// First fit in a slab already in use, so empty slabs stay available
+		// for bigger geometries.
+		for (Slab slab : slabs) {
+			if (slab.live > 0 && slab.capacity() - slab.top >= size) {
+				return slab;
+			}
+		}
+
+		for (Slab slab : slabs) {
+			if (slab.live == 0 && slab.capacity() >= size) {
+				return slab;
+			}
+		}
+
+		Slab slab = new Slab(Math.max(slabSize, size));
+		slabs.add(slab);
+		reservedBytes += slab.capacity();
+		log.debug("Reserved slab of " + slab.capacity() + " bytes (total "
+				+ reservedBytes + ")");
+
+		return slab;
+	}
+
+	private static ByteBuffer slice(ByteBuffer memory, int offset, int size) {
+		ByteBuffer buffer = memory.duplicate();
+		buffer.limit(offset + size);
+		buffer.position(offset);
+		return buffer.slice();
+	}
+
+	private static int align(int size) {
+		return (size + ALIGNMENT - 1) & ~(ALIGNMENT - 1);
+	}
+
+}
@@ -0,0 +1,256 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package com.kurento.apps.android.media;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.webrtc.VideoRenderer.I420Frame;
+
+/**
+ * Copies the planes of a frame into a frame of the same geometry. Frames of at
+ * least |threshold| bytes are split in stripes copied in parallel by a small
+ * fixed pool of daemon workers and the calling thread; smaller frames, for
+ * which handing work to other threads costs more than it saves, are copied
+ * by the calling thread only.
+ *
+ * Parallel copies run one at a time, as each of them already keeps every
+ * worker busy; serial copies run concurrently. Serial copies go through the
+ * buffers of the frames, like I420Frame.copyFrom(), and put their positions
+ * and limits back afterwards.
+ */
+final class PlaneCopier {
+
+	static final int DEFAULT_THRESHOLD = 1 << 20;
+	private static final int MAX_WORKERS = 3;
+
+	private static PlaneCopier defaultCopier;
+
+	private final ExecutorService workers;
+	private final int threshold;
+	private final Stripe[] stripes;
+
+	// Held across a whole parallel copy. The stripes report back through the
+	// monitor of the copier, which wait() releases, so it cannot keep a second
+	// copy out.
+	private final Object copyLock = new Object();
+
+	// Copy in progress, set by copyParallel() for the stripes.
+	private I420Frame source;
+	private I420Frame dest;
+	private int pendingStripes;
+	private Throwable stripeError;
+
+	/**
+	 * |nWorkers| threads copy with the calling thread. With no workers every
+	 * copy is serial.
+	 */
+	PlaneCopier(int nWorkers, int threshold) {
+		this.threshold = threshold;
+		stripes = new Stripe[nWorkers + 1];
+		for (int i = 0; i < stripes.length; i++) {
+			stripes[i] = new Stripe(i);
+		}
+
+		if (nWorkers == 0) {
+			workers = null;
+			return;
+		}
+		workers = Executors.newFixedThreadPool(nWorkers, new ThreadFactory() {
+			private int count = 0;
+
+			@Override
+			public synchronized Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "PlaneCopier-" + count++);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Copier shared by every view, with a worker per spare core up to
+	 * MAX_WORKERS.
+	 */
+	static synchronized PlaneCopier getDefault() {
+		if (defaultCopier == null) {
+			int cores = Runtime.getRuntime().availableProcessors();
+			defaultCopier = new PlaneCopier(Math.min(MAX_WORKERS,
+					Math.max(0, cores - 1)), DEFAULT_THRESHOLD);
+		}
+		return defaultCopier;
+	}
+
+	/**
+	 * Copy the planes of |source| into |dest|, and return the time it took in
+	 * nanoseconds.
+	 */
+	long copy(I420Frame source, I420Frame dest) {
+		long start = System.nanoTime();
+		if (source.width != dest.width || source.height != dest.height
+				|| source.yuvStrides[0] != dest.yuvStrides[0]
+				|| source.yuvStrides[1] != dest.yuvStrides[1]
+				|| source.yuvStrides[2] != dest.yuvStrides[2]) {
+			throw new IllegalArgumentException("Mismatched dimensions");
+		}
+
+		if (workers == null || frameSize(source) < threshold) {
+			for (int i = 0; i < 3; i++) {
+				copyPlane(source, dest, i);
+			}
+		} else {
+			copyParallel(source, dest);
+		}
+
+		return System.nanoTime() - start;
+	}
+
+	/** Whether copy() would split |frame| in stripes. */
+	boolean isParallel(I420Frame frame) {
+		return workers != null && frameSize(frame) >= threshold;
+	}
+
+	private void copyParallel(I420Frame source, I420Frame dest) {
+		synchronized (copyLock) {
+			runStripes(source, dest);
+		}
+	}
+
+	private synchronized void runStripes(I420Frame source, I420Frame dest) {
+		this.source = source;
+		this.dest = dest;
+		pendingStripes = stripes.length;
+		stripeError = null;
+
+		try {
+			for (int i = 1; i < stripes.length; i++) {
+				workers.execute(stripes[i]);
+			}
+			stripes[0].run();
+
+			boolean interrupted = false;
+			while (pendingStripes > 0) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			if (stripeError != null) {
+				throw new RuntimeException("Stripe copy failed", stripeError);
+			}
+		} finally {
+			this.source = null;
+			this.dest = null;
+		}
+	}
+
+	private synchronized void stripeDone(Throwable error) {
+		if (error != null && stripeError == null) {
+			stripeError = error;
+		}
+		if (--pendingStripes == 0) {
+			notifyAll();
+		}
+	}
+
+	// Bytes of plane |plane| of |frame|: |height| / 2 rows for chroma.
+	private static int planeSize(I420Frame frame, int plane) {
+		return frame.yuvStrides[plane]
+				* (plane == 0 ? frame.height : frame.height / 2);
+	}
+
+	private static long frameSize(I420Frame frame) {
+		return (long) planeSize(frame, 0) + planeSize(frame, 1)
+				+ planeSize(frame, 2);
+	}
+
+	// Copy plane |plane| of |source| into |dest| through their own buffers.
+	private static void copyPlane(I420Frame source, I420Frame dest, int plane) {
+		ByteBuffer from = source.yuvPlanes[plane];
+		ByteBuffer to = dest.yuvPlanes[plane];
+		int fromPosition = from.position();
+		int fromLimit = from.limit();
+		int toPosition = to.position();
+		try {
+			copyRange(from, to, 0, planeSize(source, plane));
+		} finally {
+			from.limit(fromLimit).position(fromPosition);
+			to.position(toPosition);
+		}
+	}
+
+	// Copy |length| bytes of |from| starting at |offset| to the same offset
+	// of |to|.
+	private static void copyRange(ByteBuffer from, ByteBuffer to, int offset,
+			int length) {
+		if (length == 0) {
+			return;
+		}
+		from.limit(offset + length).position(offset);
+		to.position(offset);
+		to.put(from);
+	}
+
+	// One of the equal parts of every plane copied in parallel.
+	private final class Stripe implements Runnable {
+
+		private final int index;
+		// Views of the last planes copied, so that stripes do not share
+		// buffer positions. Pooled frames keep their buffers, so the views
+		// are usually reused.
+		private final ByteBuffer[] buffers = new ByteBuffer[6];
+		private final ByteBuffer[] views = new ByteBuffer[6];
+
+		Stripe(int index) {
+			this.index = index;
+		}
+
+		@Override
+		public void run() {
+			Throwable error = null;
+			try {
+				int n = stripes.length;
+				for (int i = 0; i < 3; i++) {
+					long size = planeSize(source, i);
+					int first = (int) (size * index / n);
+					int last = (int) (size * (index + 1) / n);
+					ByteBuffer from = view(source.yuvPlanes[i], i);
+					ByteBuffer to = view(dest.yuvPlanes[i], 3 + i);
+					copyRange(from, to, first, last - first);
+				}
+			} catch (Throwable t) {
+				error = t;
+			}
+			stripeDone(error);
+		}
+
+		private ByteBuffer view(ByteBuffer buffer, int slot) {
+			if (buffers[slot] != buffer) {
+				buffers[slot] = buffer;
+				views[slot] = buffer.duplicate();
+			} else {
+				views[slot].clear();
+			}
+			return views[slot];
+		}
+	}
+
+}
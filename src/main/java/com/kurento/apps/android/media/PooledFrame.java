@@ -0,0 +1,38 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package com.kurento.apps.android.media;
+
+import org.webrtc.VideoRenderer.I420Frame;
+
+/**
+ * A frame owned by a FramePool, together with the slab block backing its
+ * planes. Instances are created on pool misses only and recycled afterwards.
+ */
+final class PooledFrame {
+
+	final I420Frame frame;
+	final FramePool.Bucket bucket;
+	final PlaneAllocator.Block block;
+	// When the frame was queued for upload; published with the frame.
+	long queuedAt;
+
+	PooledFrame(I420Frame frame, FramePool.Bucket bucket,
+			PlaneAllocator.Block block) {
+		this.frame = frame;
+		this.bucket = bucket;
+		this.block = block;
+	}
+
+}
@@ -0,0 +1,62 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package com.kurento.apps.android.media;
+
+/**
+ * Draws the frames of a FramePipeline. VideoStreamView draws them with
+ * OpenGL ES 2.0; HeadlessRenderBackend converts them to an ARGB buffer in
+ * memory.
+ *
+ * A backend has a render thread of its own, on which it takes the pending
+ * frames of each stream with FramePipeline.uploadPending() and draws them,
+ * between FramePipeline.beginDraw() and endDraw().
+ */
+public interface RenderBackend {
+
+	/**
+	 * Called by registerStream() before |stream| is published, so the backend
+	 * can attach its own state with FramePipeline.Stream.setBackendData().
+	 */
+	void streamAdded(FramePipeline.Stream stream);
+
+	/**
+	 * Called by unregisterStream() once |stream| is no longer published and
+	 * its pending frames are dropped, to release the resources of the
+	 * backend. May be called on any thread.
+	 */
+	void streamRemoved(FramePipeline.Stream stream);
+
+	/**
+	 * Frames are pending for |stream|: have them uploaded, usually by
+	 * requesting a draw with FramePipeline.scheduleDraw(). Called on producer
+	 * threads.
+	 */
+	void frameQueued(FramePipeline.Stream stream);
+
+	/**
+	 * Whether a frame lent now for |stream| in DIRECT hand-off mode would be
+	 * taken right away, rather than on the next draw. The producer is blocked
+	 * while the frame is lent, so FramePipeline copies the frame instead when
+	 * this returns false. Called on producer threads.
+	 */
+	boolean takesLentFrames(FramePipeline.Stream stream);
+
+	/**
+	 * Have the render thread draw soon. FramePipeline coalesces the requests
+	 * made before the draw starts. May be called on any thread.
+	 */
+	void requestDraw();
+
+}
@@ -0,0 +1,399 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package com.kurento.apps.android.media;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free counters of the frame pool and render path. Every stream of a
+ * VideoStreamView owns an instance whose parent is the instance of the view,
+ * so the view totals cover all of its streams. Recording is a handful of
+ * atomic adds, cheap enough to be always on; snapshot() gives a consistent
+ * enough copy to be read from any thread.
+ */
+public class RenderMetrics {
+
+	private static final int N_PLANES = 3;
+
+	private final RenderMetrics parent;
+
+	private final AtomicLong poolHits = new AtomicLong();
+	private final AtomicLong poolMisses = new AtomicLong();
+	private final AtomicLong allocations = new AtomicLong();
+	private final AtomicLong overflowDrops = new AtomicLong();
+	private final AtomicLong mailboxDrops = new AtomicLong();
+
+	private final AtomicLong queueToUploadCount = new AtomicLong();
+	private final AtomicLong queueToUploadNanos = new AtomicLong();
+	private final AtomicLong queueToUploadMaxNanos = new AtomicLong();
+
+	private final AtomicLong copyCount = new AtomicLong();
+	private final AtomicLong copyNanos = new AtomicLong();
+	private final AtomicLong copiedBytes = new AtomicLong();
+	private final AtomicLong copiedBytesNanos = new AtomicLong();
+	private final AtomicLong parallelCopies = new AtomicLong();
+	private final AtomicLong decimatedFrames = new AtomicLong();
+	private final AtomicLong handoffCount = new AtomicLong();
+	private final AtomicLong handoffNanos = new AtomicLong();
+	private final AtomicLong handoffTimeouts = new AtomicLong();
+	private final AtomicLong handoffSkips = new AtomicLong();
+	private final AtomicLong lentBytes = new AtomicLong();
+
+	private final AtomicLong uploadCount = new AtomicLong();
+	private final AtomicLongArray uploadNanos = new AtomicLongArray(N_PLANES);
+
+	private final AtomicLong drawCount = new AtomicLong();
+	private final AtomicLong drawNanos = new AtomicLong();
+	private final AtomicLong drawMaxNanos = new AtomicLong();
+
+	private final AtomicLong coalescedRenders = new AtomicLong();
+
+	private final AtomicLong glCalls = new AtomicLong();
+	private final AtomicLong glCallsSkipped = new AtomicLong();
+	private final AtomicLong glCallsLastFrame = new AtomicLong();
+	private final AtomicLong glCallsMax = new AtomicLong();
+
+	private volatile double renderedFps = 0;
+
+	RenderMetrics() {
+		this(null);
+	}
+
+	RenderMetrics(RenderMetrics parent) {
+		this.parent = parent;
+	}
+
+	void recordPoolHit() {
+		poolHits.incrementAndGet();
+		if (parent != null) {
+			parent.recordPoolHit();
+		}
+	}
+
+	void recordPoolMiss() {
+		poolMisses.incrementAndGet();
+		if (parent != null) {
+			parent.recordPoolMiss();
+		}
+	}
+
+	void recordAllocation() {
+		allocations.incrementAndGet();
+		if (parent != null) {
+			parent.recordAllocation();
+		}
+	}
+
+	void recordOverflowDrop() {
+		overflowDrops.incrementAndGet();
+		if (parent != null) {
+			parent.recordOverflowDrop();
+		}
+	}
+
+	void recordMailboxDrop() {
+		mailboxDrops.incrementAndGet();
+		if (parent != null) {
+			parent.recordMailboxDrop();
+		}
+	}
+
+	void recordQueueToUpload(long nanos) {
+		queueToUploadCount.incrementAndGet();
+		queueToUploadNanos.addAndGet(nanos);
+		updateMax(queueToUploadMaxNanos, nanos);
+		if (parent != null) {
+			parent.recordQueueToUpload(nanos);
+		}
+	}
+
+	/**
+	 * Time spent copying a frame of |bytes| into a pooled frame on the
+	 * producer. |bytes| is 0 for frames decimated rather than copied, which
+	 * cost more per byte.
+	 */
+	void recordCopy(long nanos, long bytes) {
+		copyCount.incrementAndGet();
+		copyNanos.addAndGet(nanos);
+		if (bytes > 0) {
+			copiedBytes.addAndGet(bytes);
+			copiedBytesNanos.addAndGet(nanos);
+		}
+		if (parent != null) {
+			parent.recordCopy(nanos, bytes);
+		}
+	}
+
+	/** A frame was copied in stripes by several threads. */
+	void recordParallelCopy() {
+		parallelCopies.incrementAndGet();
+		if (parent != null) {
+			parent.recordParallelCopy();
+		}
+	}
+
+	/** A frame was downsampled instead of copied. */
+	void recordDecimation() {
+		decimatedFrames.incrementAndGet();
+		if (parent != null) {
+			parent.recordDecimation();
+		}
+	}
+
+	/**
+	 * Time the producer was blocked lending a frame of |bytes| to the render
+	 * thread instead of copying it.
+	 */
+	void recordHandoff(long nanos, long bytes) {
+		handoffCount.incrementAndGet();
+		handoffNanos.addAndGet(nanos);
+		lentBytes.addAndGet(bytes);
+		if (parent != null) {
+			parent.recordHandoff(nanos, bytes);
+		}
+	}
+
+	void recordHandoffTimeout() {
+		handoffTimeouts.incrementAndGet();
+		if (parent != null) {
+			parent.recordHandoffTimeout();
+		}
+	}
+
+	/** A frame of a DIRECT stream was copied, as the backend was not ready. */
+	void recordHandoffSkip() {
+		handoffSkips.incrementAndGet();
+		if (parent != null) {
+			parent.recordHandoffSkip();
+		}
+	}
+
+	/** |planeNanos| holds the time spent uploading each Y/U/V plane. */
+	void recordUpload(long[] planeNanos) {
+		uploadCount.incrementAndGet();
+		for (int i = 0; i < N_PLANES; i++) {
+			uploadNanos.addAndGet(i, planeNanos[i]);
+		}
+		if (parent != null) {
+			parent.recordUpload(planeNanos);
+		}
+	}
+
+	void recordDraw(long nanos) {
+		drawCount.incrementAndGet();
+		drawNanos.addAndGet(nanos);
+		updateMax(drawMaxNanos, nanos);
+	}
+
+	/** A render request covered by a draw that was already pending. */
+	void recordCoalescedRender() {
+		coalescedRenders.incrementAndGet();
+	}
+
+	/**
+	 * GL calls |issued| by one frame, and the redundant ones that were
+	 * |skipped|.
+	 */
+	void recordGLCalls(int issued, int skipped) {
+		glCalls.addAndGet(issued);
+		glCallsSkipped.addAndGet(skipped);
+		glCallsLastFrame.set(issued);
+		updateMax(glCallsMax, issued);
+	}
+
+	void setRenderedFps(double fps) {
+		renderedFps = fps;
+	}
+
+	public Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+
+	private static void updateMax(AtomicLong max, long value) {
+		long current;
+		while (value > (current = max.get())) {
+			if (max.compareAndSet(current, value)) {
+				return;
+			}
+		}
+	}
+
+	/** Immutable copy of the counters. Times are in nanoseconds. */
+	public static class Snapshot {
+
+		public final long poolHits;
+		public final long poolMisses;
+		public final long allocations;
+		public final long overflowDrops;
+		// Frames displaced from a stream mailbox before being uploaded.
+		public final long mailboxDrops;
+
+		public final long queueToUploadCount;
+		public final long queueToUploadTotalNanos;
+		public final long queueToUploadMaxNanos;
+
+		public final long copyCount;
+		public final long copyTotalNanos;
+		// Copies split in stripes across the copy workers.
+		public final long parallelCopies;
+		// Copies that downsampled the frame (see setDecimation()).
+		public final long decimatedFrames;
+		public final long handoffCount;
+		public final long handoffTotalNanos;
+		public final long handoffTimeouts;
+		// Frames of DIRECT streams copied without trying to lend them.
+		public final long handoffSkips;
+		// Bytes of the frames copied in full, and the time those copies
+		// took, which gives the cost of the copies saved by lending
+		// |lentBytes|.
+		public final long copiedBytes;
+		public final long copiedBytesTotalNanos;
+		public final long lentBytes;
+
+		public final long uploadCount;
+		private final long[] uploadTotalNanos;
+
+		public final long drawCount;
+		public final long drawTotalNanos;
+		public final long drawMaxNanos;
+		// Render requests that did not cause a draw of their own.
+		public final long coalescedRenders;
+
+		// GL calls issued by the render loop, and redundant ones dropped.
+		public final long glCallsTotal;
+		public final long glCallsSkippedTotal;
+		public final long glCallsLastFrame;
+		public final long glCallsMaxPerFrame;
+
+		public final double renderedFps;
+
+		// Read every counter of |metrics|, one at a time.
+		private Snapshot(RenderMetrics metrics) {
+			poolHits = metrics.poolHits.get();
+			poolMisses = metrics.poolMisses.get();
+			allocations = metrics.allocations.get();
+			overflowDrops = metrics.overflowDrops.get();
+			mailboxDrops = metrics.mailboxDrops.get();
+
+			queueToUploadCount = metrics.queueToUploadCount.get();
+			queueToUploadTotalNanos = metrics.queueToUploadNanos.get();
+			queueToUploadMaxNanos = metrics.queueToUploadMaxNanos.get();
+
+			copyCount = metrics.copyCount.get();
+			copyTotalNanos = metrics.copyNanos.get();
+			parallelCopies = metrics.parallelCopies.get();
+			decimatedFrames = metrics.decimatedFrames.get();
+			handoffCount = metrics.handoffCount.get();
+			handoffTotalNanos = metrics.handoffNanos.get();
+			handoffTimeouts = metrics.handoffTimeouts.get();
+			handoffSkips = metrics.handoffSkips.get();
+			copiedBytes = metrics.copiedBytes.get();
+			copiedBytesTotalNanos = metrics.copiedBytesNanos.get();
+			lentBytes = metrics.lentBytes.get();
+
+			uploadCount = metrics.uploadCount.get();
+			uploadTotalNanos = new long[N_PLANES];
+			for (int i = 0; i < N_PLANES; i++) {
+				uploadTotalNanos[i] = metrics.uploadNanos.get(i);
+			}
+
+			drawCount = metrics.drawCount.get();
+			drawTotalNanos = metrics.drawNanos.get();
+			drawMaxNanos = metrics.drawMaxNanos.get();
+			coalescedRenders = metrics.coalescedRenders.get();
+
+			glCallsTotal = metrics.glCalls.get();
+			glCallsSkippedTotal = metrics.glCallsSkipped.get();
+			glCallsLastFrame = metrics.glCallsLastFrame.get();
+			glCallsMaxPerFrame = metrics.glCallsMax.get();
+
+			renderedFps = metrics.renderedFps;
+		}
+
+		/** Total time spent uploading plane |plane| (0: Y, 1: U, 2: V). */
+		public long getUploadTotalNanos(int plane) {
+			return uploadTotalNanos[plane];
+		}
+
+		public long getAvgUploadNanos(int plane) {
+			return average(uploadTotalNanos[plane], uploadCount);
+		}
+
+		public long getAvgQueueToUploadNanos() {
+			return average(queueToUploadTotalNanos, queueToUploadCount);
+		}
+
+		public long getAvgCopyNanos() {
+			return average(copyTotalNanos, copyCount);
+		}
+
+		public long getAvgHandoffNanos() {
+			return average(handoffTotalNanos, handoffCount);
+		}
+
+		/**
+		 * Producer time saved by lending frames instead of copying them,
+		 * estimated from the cost per byte of the copies made, or 0 if no
+		 * frame was copied in full yet.
+		 */
+		public long getSavedCopyNanos() {
+			if (copiedBytes == 0) {
+				return 0;
+			}
+			return (long) ((double) copiedBytesTotalNanos / copiedBytes
+					* lentBytes);
+		}
+
+		public long getAvgDrawNanos() {
+			return average(drawTotalNanos, drawCount);
+		}
+
+		public long getAvgGLCallsPerFrame() {
+			return average(glCallsTotal, drawCount);
+		}
+
+		private static long average(long total, long count) {
+			return count == 0 ? 0 : total / count;
+		}
+
+		@Override
+		public String toString() {
+			return "pool hits/misses: " + poolHits + "/" + poolMisses
+					+ ", allocations: " + allocations + ", overflow drops: "
+					+ overflowDrops + ", mailbox drops: " + mailboxDrops
+					+ ", queue to upload avg/max (us): "
+					+ getAvgQueueToUploadNanos() / 1000 + "/"
+					+ queueToUploadMaxNanos / 1000 + ", copy avg (us): "
+					+ getAvgCopyNanos() / 1000 + ", parallel copies: "
+					+ parallelCopies + ", decimated frames: "
+					+ decimatedFrames + ", handoff avg (us): "
+					+ getAvgHandoffNanos() / 1000 + ", handoff timeouts: "
+					+ handoffTimeouts + ", handoff skips: " + handoffSkips
+					+ ", saved copy (us): " + getSavedCopyNanos() / 1000
+					+ ", upload Y/U/V (us): "
+					+ getAvgUploadNanos(0) / 1000 + "/"
+					+ getAvgUploadNanos(1) / 1000 + "/"
+					+ getAvgUploadNanos(2) / 1000 + ", draw avg/max (us): "
+					+ getAvgDrawNanos() / 1000 + "/" + drawMaxNanos / 1000
+					+ ", coalesced renders: " + coalescedRenders
+					+ ", GL calls per frame avg/max: "
+					+ getAvgGLCallsPerFrame() + "/" + glCallsMaxPerFrame
+					+ ", skipped GL calls: " + glCallsSkippedTotal
+					+ ", fps: " + renderedFps;
+		}
+	}
+
+}
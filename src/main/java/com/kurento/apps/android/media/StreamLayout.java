@@ -0,0 +1,88 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package com.kurento.apps.android.media;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Where a stream is drawn on the surface: its rectangle in pixels relative to
+ * the surface, and the quad covering it in normalized device coordinates.
+ * Immutable, so a new layout is published by replacing the reference.
+ */
+final class StreamLayout {
+
+	/** Layout of a stream whose dimensions have not been set yet. */
+	static final StreamLayout NONE = new StreamLayout(0, 0, -1, -1,
+			new float[8]);
+
+	final int x;
+	final int y;
+	final int width;
+	final int height;
+	// X,Y coordinates of the corners, in triangle strip order.
+	final FloatBuffer vertices;
+
+	private StreamLayout(int x, int y, int width, int height,
+			float[] vertices) {
+		this.x = x;
+		this.y = y;
+		this.width = width;
+		this.height = height;
+		this.vertices = ByteBuffer.allocateDirect(vertices.length * 4)
+				.order(ByteOrder.nativeOrder()).asFloatBuffer();
+		this.vertices.put(vertices);
+		this.vertices.flip();
+	}
+
+	/**
+	 * Layout of a |width|x|height| rectangle at |xPos|,|yPos| on a surface of
+	 * |surfaceWidth|x|surfaceHeight| at |surfaceX|,|surfaceY|, all in window
+	 * coordinates, or null if the rectangle does not fit in the surface.
+	 */
+	static StreamLayout compute(int width, int height, int xPos, int yPos,
+			int surfaceX, int surfaceY, int surfaceWidth, int surfaceHeight) {
+		int sXMin = xPos;
+		int sXMax = sXMin + width;
+		int sYMin = yPos;
+		int sYMax = sYMin + height;
+
+		int xMin = surfaceX;
+		int xMax = xMin + surfaceWidth;
+		int yMin = surfaceY;
+		int yMax = yMin + surfaceHeight;
+
+		if (xMin > sXMin || xMax < sXMax || yMin > sYMin || yMax < sYMax) {
+			return null;
+		}
+
+		float x1 = ((float) (sXMin - xMin) / xMax) * 2 - 1;
+		float x2 = ((float) (sXMax - xMin) / xMax) * 2 - 1;
+		float y1 = ((float) (sYMin - yMin) / yMax) * -2 + 1;
+		float y2 = ((float) (sYMax - yMin) / yMax) * -2 + 1;
+
+		return new StreamLayout(sXMin - xMin, sYMin - yMin, width, height,
+				new float[] { x1, y1, x1, y2, x2, y1, x2, y2 });
+	}
+
+	@Override
+	public String toString() {
+		return width + "x" + height + "+" + x + "+" + y + " vertices: ["
+				+ vertices.get(0) + ", " + vertices.get(1) + ", "
+				+ vertices.get(6) + ", " + vertices.get(7) + "]";
+	}
+
+}
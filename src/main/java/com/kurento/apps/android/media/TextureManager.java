@@ -0,0 +1,188 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package com.kurento.apps.android.media;
+
+import java.util.ArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.opengl.GLES20;
+
+/**
+ * Owns the Y/U/V texture ids of every stream. Ids are kept while the geometry
+ * of a stream does not change, and deleted when it changes or the stream goes
+ * away, so texture storage is never leaked by setSize() or onSurfaceChanged().
+ *
+ * All methods but getBytesInUse() must be called on the render thread.
+ */
+class TextureManager {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(TextureManager.class.getSimpleName());
+
+	/**
+	 * Y/U/V textures of one stream, or Y/UV textures for semi-planar formats,
+	 * whose interleaved chroma is held by a single LUMINANCE_ALPHA texture.
+	 */
+	static final class Textures {
+		final int[] ids = { -1, -1, -1 };
+		FrameFormat format = FrameFormat.I420;
+		// Geometry the storage was allocated for, and the row width in texels
+		// of each texture (the stride when uploading padded planes).
+		int width = -1;
+		int height = -1;
+		final int[] rowWidths = { -1, -1, -1 };
+		// Fraction of the texture width holding visible pixels.
+		float cropX = 1;
+		private long bytes = 0;
+
+		boolean isAllocated() {
+			return ids[0] != -1;
+		}
+
+		int planes() {
+			return format.planes();
+		}
+
+		boolean matches(FrameFormat format, int width, int height,
+				int[] rowWidths) {
+			return isAllocated() && this.format == format
+					&& this.width == width
+					&& this.height == height
+					&& this.rowWidths[0] == rowWidths[0]
+					&& this.rowWidths[1] == rowWidths[1]
+					&& this.rowWidths[2] == rowWidths[2];
+		}
+	}
+
+	private final GLStateCache glState;
+	private final ArrayList<Textures> allocated = new ArrayList<Textures>();
+	private volatile long bytesInUse = 0;
+
+	TextureManager(GLStateCache glState) {
+		this.glState = glState;
+	}
+
+	/**
+	 * Make sure |textures| hold storage for |width|x|height| pixels of
+	 * |format| with rows of |rowWidths| texels, deleting the previous ids if
+	 * the format or geometry changed. Return true if new storage was
+	 * allocated.
+	 */
+	boolean ensure(Textures textures, FrameFormat format, int width,
+			int height, int[] rowWidths) {
+		if (textures.matches(format, width, height, rowWidths)) {
+			return false;
+		}
+
+		release(textures);
+
+		int planes = format.planes();
+		GLES20.glGenTextures(planes, textures.ids, 0);
+		glState.countIssued(1);
+		long bytes = 0;
+		for (int i = 0; i < planes; ++i) {
+			int w = rowWidths[i];
+			int h = i == 0 ? height : height / 2;
+			int glFormat = textureFormat(format, i);
+			glState.activeTexture(GLES20.GL_TEXTURE0 + i);
+			glState.bindTexture(textures.ids[i]);
+			GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, glFormat, w, h, 0,
+					glFormat, GLES20.GL_UNSIGNED_BYTE, null);
+			GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+					GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+			GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+					GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+			GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+					GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+			GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+					GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+			glState.countIssued(5);
+			bytes += (long) w * h * bytesPerTexel(glFormat);
+		}
+
+		textures.format = format;
+		textures.width = width;
+		textures.height = height;
+		System.arraycopy(rowWidths, 0, textures.rowWidths, 0, 3);
+		textures.cropX = (float) width / rowWidths[0];
+		textures.bytes = bytes;
+		allocated.add(textures);
+		bytesInUse += bytes;
+
+		log.debug("Allocated " + width + "x" + height + " textures, "
+				+ bytesInUse + " bytes in use");
+		return true;
+	}
+
+	/** Delete the ids of |textures|, if any. */
+	void release(Textures textures) {
+		if (!textures.isAllocated()) {
+			return;
+		}
+
+		glState.deleteTextures(textures.planes(), textures.ids, 0);
+		bytesInUse -= textures.bytes;
+		allocated.remove(textures);
+		forget(textures);
+	}
+
+	/** Delete the ids of every texture allocated by this manager. */
+	void releaseAll() {
+		while (!allocated.isEmpty()) {
+			release(allocated.get(allocated.size() - 1));
+		}
+	}
+
+	/**
+	 * Forget every id without deleting it, because the EGL context that
+	 * owned them is gone.
+	 */
+	void invalidateAll() {
+		for (Textures textures : allocated) {
+			forget(textures);
+		}
+		allocated.clear();
+		bytesInUse = 0;
+	}
+
+	/** Bytes of texture storage currently allocated. Any thread. */
+	long getBytesInUse() {
+		return bytesInUse;
+	}
+
+	/** GL format of the texture holding plane |plane| of |format|. */
+	static int textureFormat(FrameFormat format, int plane) {
+		return format.planes() == 2 && plane == 1 ? GLES20.GL_LUMINANCE_ALPHA
+				: GLES20.GL_LUMINANCE;
+	}
+
+	static int bytesPerTexel(int glFormat) {
+		return glFormat == GLES20.GL_LUMINANCE_ALPHA ? 2 : 1;
+	}
+
+	private static void forget(Textures textures) {
+		for (int i = 0; i < 3; ++i) {
+			textures.ids[i] = -1;
+			textures.rowWidths[i] = -1;
+		}
+		textures.width = -1;
+		textures.height = -1;
+		textures.cropX = 1;
+		textures.bytes = 0;
+	}
+
+}
@@ -0,0 +1,186 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package com.kurento.apps.android.media;
+
+import java.util.ArrayDeque;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.egl.EGLContext;
+import javax.microedition.khronos.egl.EGLDisplay;
+import javax.microedition.khronos.egl.EGLSurface;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Uploads frames on its own thread, with an EGL context sharing textures with
+ * the render context, so that large uploads do not delay the draws of the
+ * render thread. The context is current on a 1x1 pbuffer surface, as it never
+ * draws.
+ *
+ * Textures allocated here belong to the TextureManager of the thread, and are
+ * deleted when it quits.
+ */
+final class UploadThread extends Thread {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(UploadThread.class.getSimpleName());
+
+	private static final int EGL_CONTEXT_CLIENT_VERSION = 0x3098;
+
+	/** Work run on the upload thread. */
+	interface Task {
+		void upload(FrameUploader uploader);
+	}
+
+	private final EGL10 egl;
+	private final EGLDisplay display;
+	private final EGLContext context;
+	private final EGLSurface surface;
+	private final FrameUploader uploader;
+
+	private final ArrayDeque<Task> tasks = new ArrayDeque<Task>();
+	private boolean quit = false;
+
+	private UploadThread(EGL10 egl, EGLDisplay display, EGLContext context,
+			EGLSurface surface) {
+		super("UploadThread");
+		this.egl = egl;
+		this.display = display;
+		this.context = context;
+		this.surface = surface;
+
+		GLStateCache glState = new GLStateCache();
+		uploader = new FrameUploader(glState, new TextureManager(glState));
+	}
+
+	/**
+	 * Start a thread whose context shares textures with |shared|. Return null
+	 * if the context cannot be created, in which case uploads must stay on
+	 * the render thread.
+	 */
+	static UploadThread start(EGL10 egl, EGLDisplay display,
+			EGLConfig config, EGLContext shared) {
+		int[] contextAttribs = { EGL_CONTEXT_CLIENT_VERSION, 2,
+				EGL10.EGL_NONE };
+		EGLContext context = egl.eglCreateContext(display, config, shared,
+				contextAttribs);
+		if (context == null || context == EGL10.EGL_NO_CONTEXT) {
+			log.error("Cannot create upload context: " + egl.eglGetError());
+			return null;
+		}
+
+		int[] surfaceAttribs = { EGL10.EGL_WIDTH, 1, EGL10.EGL_HEIGHT, 1,
+				EGL10.EGL_NONE };
+		EGLSurface surface = egl.eglCreatePbufferSurface(display, config,
+				surfaceAttribs);
+		if (surface == null || surface == EGL10.EGL_NO_SURFACE) {
+			log.error("Cannot create upload surface: " + egl.eglGetError());
+			egl.eglDestroyContext(display, context);
+			return null;
+		}
+
+		UploadThread thread = new UploadThread(egl, display, context, surface);
+		thread.start();
+		return thread;
+	}
+
+	/** Bytes of texture storage allocated by this thread. Any thread. */
+	long getTextureBytesInUse() {
+		return uploader.getTextureManager().getBytesInUse();
+	}
+
+	/** Run |task| on the upload thread. Tasks pending on quit() are dropped. */
+	void schedule(Task task) {
+		synchronized (tasks) {
+			tasks.add(task);
+			tasks.notify();
+		}
+	}
+
+	/**
+	 * Delete the textures of this thread, destroy its context and wait for it
+	 * to finish. Must be called before the shared context is destroyed.
+	 */
+	void quit() {
+		synchronized (tasks) {
+			quit = true;
+			tasks.notify();
+		}
+
+		boolean interrupted = false;
+		while (isAlive()) {
+			try {
+				join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void run() {
+		if (!egl.eglMakeCurrent(display, surface, surface, context)) {
+			log.error("Cannot make upload context current: "
+					+ egl.eglGetError());
+		} else {
+			loop();
+			uploader.getTextureManager().releaseAll();
+		}
+
+		egl.eglMakeCurrent(display, EGL10.EGL_NO_SURFACE,
+				EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_CONTEXT);
+		egl.eglDestroySurface(display, surface);
+		egl.eglDestroyContext(display, context);
+	}
+
+	private void loop() {
+		GLStateCache glState = uploader.getGLState();
+
+		while (true) {
+			Task task;
+			synchronized (tasks) {
+				while (!quit && tasks.isEmpty()) {
+					try {
+						tasks.wait();
+					} catch (InterruptedException e) {
+						log.warn("Upload thread interrupted");
+					}
+				}
+				if (quit) {
+					tasks.clear();
+					return;
+				}
+				task = tasks.poll();
+			}
+
+			try {
+				task.upload(uploader);
+			} catch (RuntimeException e) {
+				// The frame went back to the pipeline; keep serving the
+				// other streams.
+				log.error("Upload failed", e);
+			}
+			// Calls of this context are not part of any frame.
+			glState.takeIssuedCalls();
+			glState.takeSkippedCalls();
+		}
+	}
+
+}
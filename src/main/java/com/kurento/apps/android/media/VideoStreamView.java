@@ -31,9 +31,12 @@ package com.kurento.apps.android.media;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
-import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.microedition.khronos.egl.EGL10;
 import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.egl.EGLContext;
+import javax.microedition.khronos.egl.EGLDisplay;
 import javax.microedition.khronos.opengles.GL10;
 
 import org.slf4j.Logger;
@@ -50,170 +53,505 @@ import android.opengl.GLSurfaceView;
  * constructor, setSize() and updateFrame() as appropriate, but none of the
  * other public methods of this class are of interest to clients (only to system
  * classes).
+ *
+ * Frames go through a FramePipeline, for which this View is the OpenGL ES 2.0
+ * RenderBackend.
  */
 public class VideoStreamView extends GLSurfaceView implements
-		GLSurfaceView.Renderer {
+		GLSurfaceView.Renderer, RenderBackend {
 
 	private static final Logger log = LoggerFactory
 			.getLogger(VideoStreamView.class.getSimpleName());
 
 	private int viewWidth = -1;
 	private int viewHeight = -1;
+	// Thread running the renderer, set by onSurfaceCreated().
+	private volatile Thread renderThread;
+
+	private static final int DEFAULT_ERROR_CHECK_INTERVAL = 60;
+
+	// GL state of a stream of |pipeline|, attached as its backend data.
+	private class GlStream implements UploadThread.Task {
+		private final FramePipeline.Stream stream;
+		private final TextureManager.Textures textures =
+				new TextureManager.Textures();
+		// Quad of the stream in the batch vertex buffer, and the layout and
+		// crop it was built from. Only touched on the render thread.
+		private int batchIndex = -1;
+		private StreamLayout batchLayout;
+		private float batchCropX;
+		// Textures drawn by the last onDrawFrame(). Render thread only.
+		private TextureManager.Textures drawn = textures;
+
+		// Double-buffered textures filled by the upload thread. It uploads to
+		// the back buffer while |ready| is false; the render thread flips the
+		// buffers when it is true. Both flags are guarded by the GlStream.
+		private final TextureManager.Textures[] buffers = {
+				new TextureManager.Textures(), new TextureManager.Textures() };
+		private int front = 0;
+		private boolean ready = false;
+		private final AtomicBoolean uploadScheduled = new AtomicBoolean();
+
+		private GlStream(FramePipeline.Stream stream) {
+			this.stream = stream;
+		}
 
-	private class Stream {
-		private int[] texture = { -1, -1, -1 };
-		private int width = -1;
-		private int height = -1;
-		private FloatBuffer vertices = directNativeFloatBuffer(new float[] { 0,
-				0, 0, 0, 0, 0, 0, 0 });
-	};
+		@Override
+		public void upload(FrameUploader uploader) {
+			uploadScheduled.set(false);
+
+			TextureManager.Textures back;
+			synchronized (this) {
+				// Rescheduled by the render thread after the next flip.
+				if (ready || stream.removed) {
+					return;
+				}
+				back = buffers[1 - front];
+			}
 
-	private int posLocation = -1;
-	private long lastFPSLogTime = System.nanoTime();
-	private long numFramesSinceLastLog = 0;
-	private final FramePool framePool = new FramePool();
+			if (!pipeline.uploadPending(stream, uploader, back)) {
+				return;
+			}
+			// The render context may only sample the textures once they are
+			// complete. GLES2 has no fences, so wait for the upload here.
+			GLES20.glFinish();
+			checkNoGLES2Error();
+
+			synchronized (this) {
+				ready = true;
+			}
+			pipeline.scheduleDraw();
+		}
+	};
 
-	private final ArrayList<Stream> streams = new ArrayList<Stream>();
+	// Attribute locations are bound to be the same in every program.
+	private static final int POS_LOCATION = 0;
+	private static final int TC_LOCATION = 1;
+	private final int[] programs = new int[FrameFormat.values().length];
+	private final int[] tcScaleLocations = new int[FrameFormat.values().length];
+	private final FramePipeline pipeline;
+	private final GLStateCache glState = new GLStateCache();
+	private final TextureManager textureManager = new TextureManager(glState);
+	private final RenderMetrics metrics;
+	private final FrameUploader renderUploader = new FrameUploader(glState,
+			textureManager);
+	// Scratch row widths of the textures allocated by resize().
+	private final int[] resizeRowWidths = new int[3];
+	// Set when frames are uploaded on their own thread. Only changes on the
+	// render thread, while its EGL context is created or destroyed, and is
+	// null while there is no context.
+	private volatile UploadThread uploadThread;
+
+	private volatile ErrorCheck errorCheck = ErrorCheck.SAMPLED;
+	private volatile int errorCheckInterval = DEFAULT_ERROR_CHECK_INTERVAL;
+	private int framesSinceErrorCheck = 0;
+
+	private volatile boolean batchedDraw = false;
+	// Vertex buffer holding the quads of every drawn stream, interleaving
+	// X,Y position and S,T texture coordinates. Only touched on the render
+	// thread; |batchStreams| is the registry snapshot it was built from.
+	private static final int BATCH_VERTEX_FLOATS = 4;
+	private static final int BATCH_STRIDE = BATCH_VERTEX_FLOATS * 4;
+	private final int[] batchBuffer = { -1 };
+	private FloatBuffer batchData;
+	private FramePipeline.Stream[] batchStreams;
+	// Whether in_tc points to |textureCoords| rather than to the batch buffer.
+	private boolean clientTexCoords = true;
 
 	public VideoStreamView(Context c) {
+		this(c, FramePool.DEFAULT_DEPTH);
+	}
+
+	/**
+	 * |framePoolDepth| is the maximum number of frames of each geometry kept
+	 * in flight between queueFrame() and the texture upload.
+	 */
+	public VideoStreamView(Context c, int framePoolDepth) {
+		this(c, framePoolDepth, false);
+	}
+
+	/**
+	 * With |uploadOnThread|, frames are uploaded on a dedicated thread with an
+	 * EGL context shared with the render thread, so uploads of large frames
+	 * overlap with the draws of other streams. Each stream then holds two
+	 * sets of textures.
+	 */
+	public VideoStreamView(Context c, int framePoolDepth,
+			boolean uploadOnThread) {
 		super(c);
 
+		pipeline = new FramePipeline(this, framePoolDepth);
+		metrics = pipeline.getRenderMetrics();
+
 		setEGLConfigChooser(false); // Don't need a depth buffer.
 
 		setEGLContextClientVersion(2);
+		if (uploadOnThread) {
+			setEGLContextFactory(new UploadContextFactory());
+		}
 		setRenderer(this);
 		setRenderMode(RENDERMODE_WHEN_DIRTY);
 		setBackgroundColor(android.R.color.transparent);
 		setZOrderMediaOverlay(true);
 	}
 
-	public synchronized int registerStream() {
-		int id = streams.size();
-		streams.add(new Stream());
-		return id;
+	public int registerStream() {
+		return registerStream(DropPolicy.LATEST_ONLY, 1);
 	}
 
-	public synchronized void setStreamDimensions(int streamId, int width,
-			int height, int xPos, int yPos) {
-		Stream stream = streams.get(streamId);
+	/**
+	 * Register a stream whose pending frames are handled with |policy|.
+	 * |queueDepth| is only used by BOUNDED_QUEUE; the frame pool depth must
+	 * leave room for the queued frames plus one being copied and one being
+	 * uploaded.
+	 */
+	public int registerStream(DropPolicy policy, int queueDepth) {
+		return pipeline.registerStream(policy, queueDepth);
+	}
 
-		int sXMin = xPos;
-		int sXMax = sXMin + width;
-		int sYMin = yPos;
-		int sYMax = sYMin + height;
+	/**
+	 * Stop drawing the stream registered as |streamId| and release its
+	 * textures and pending frames. Frames queued with the id afterwards are
+	 * dropped; it is not handed out again until its slot has been reused
+	 * many times.
+	 */
+	public void unregisterStream(int streamId) {
+		pipeline.unregisterStream(streamId);
+	}
 
+	public void setStreamDimensions(int streamId, int width, int height,
+			int xPos, int yPos) {
 		int location[] = new int[2];
 		getLocationInWindow(location);
-		int xMin = location[0];
-		int xMax = xMin + getWidth();
-		int yMin = location[1];
-		int yMax = yMin + getHeight();
+		pipeline.setStreamDimensions(streamId, width, height, xPos, yPos,
+				location[0], location[1], getWidth(), getHeight());
+	}
 
-		if (xMin > sXMin || xMax < sXMax || yMin > sYMin || yMax < sYMax) {
-			log.error("Widget out of surface gl boundaries");
-			return;
+	/**
+	 * Draw all streams from a single vertex buffer, with no per-stream
+	 * attribute setup or error check. The buffer is only rebuilt when a stream
+	 * is added, removed, moved or changes its texture layout.
+	 */
+	public void setBatchedDraw(boolean batched) {
+		batchedDraw = batched;
+		pipeline.scheduleDraw();
+	}
+
+	/**
+	 * Choose when the render loop checks for GL errors. With SAMPLED, errors
+	 * are checked once every |interval| frames.
+	 */
+	public void setErrorCheck(ErrorCheck check, int interval) {
+		if (interval < 1) {
+			throw new IllegalArgumentException("Invalid interval: " + interval);
 		}
+		errorCheckInterval = interval;
+		errorCheck = check;
+	}
+
+	/** Bytes of native memory reserved for pooled frame planes. */
+	public long getFrameMemoryReserved() {
+		return pipeline.getFrameMemoryReserved();
+	}
+
+	/** Bytes of native memory held by pooled frames. */
+	public long getFrameMemoryInUse() {
+		return pipeline.getFrameMemoryInUse();
+	}
+
+	/**
+	 * Limit the native memory held by pooled frames to about |byteBudget|
+	 * bytes, and release the frames of geometries (e.g. after a resolution
+	 * change) that have not been seen for |idleTimeoutMs|.
+	 */
+	public void setFrameMemoryBudget(long byteBudget, long idleTimeoutMs) {
+		pipeline.setFrameMemoryBudget(byteBudget, idleTimeoutMs);
+	}
+
+	/** Bytes of GPU memory held by stream textures. */
+	public long getTextureMemoryInUse() {
+		UploadThread thread = uploadThread;
+		return textureManager.getBytesInUse()
+				+ (thread != null ? thread.getTextureBytesInUse() : 0);
+	}
+
+	/** Counters of the whole view, covering all of its streams. */
+	public RenderMetrics.Snapshot getMetrics() {
+		return pipeline.getMetrics();
+	}
 
-		float x1 = ((float) (sXMin - xMin) / xMax) * 2 - 1;
-		float x2 = ((float) (sXMax - xMin) / xMax) * 2 - 1;
-		float y1 = ((float) (sYMin - yMin) / yMax) * -2 + 1;
-		float y2 = ((float) (sYMax - yMin) / yMax) * -2 + 1;
+	/** Counters of the stream registered as |streamId|. */
+	public RenderMetrics.Snapshot getStreamMetrics(int streamId) {
+		return pipeline.getStreamMetrics(streamId);
+	}
 
-		log.debug("Stream: " + streamId + " vertices");
-		log.debug("x1: " + x1);
-		log.debug("x2: " + x2);
-		log.debug("y1: " + y1);
-		log.debug("y2: " + y2);
+	/**
+	 * Downsample frames queued for |streamId| by 2 or 4 in each direction
+	 * when they are at least that much larger than the rectangle set by
+	 * setStreamDimensions(), saving upload bandwidth and texture memory for
+	 * thumbnails. Decimated frames are always copied, whatever the hand-off
+	 * mode.
+	 */
+	public void setDecimation(int streamId, boolean enabled) {
+		pipeline.setDecimation(streamId, enabled);
+	}
 
-		stream.vertices = directNativeFloatBuffer(new float[] { x1, y1, x1, y2,
-				x2, y1, x2, y2 });
+	/**
+	 * Set the pixel layout of the frames queued for |streamId|. It must be set
+	 * before queueing frames of a format other than I420.
+	 */
+	public void setStreamFormat(int streamId, FrameFormat format) {
+		pipeline.setStreamFormat(streamId, format);
+	}
 
+	/**
+	 * Wrap a semi-planar NV12 or NV21 frame to be queued with queueFrame(),
+	 * without copying it: |uv| holds |height| / 2 rows of |width| / 2
+	 * interleaved chroma pairs. The frame is only valid as long as the buffers
+	 * are.
+	 */
+	public static I420Frame semiPlanarFrame(int width, int height,
+			ByteBuffer y, int yStride, ByteBuffer uv, int uvStride) {
+		return new I420Frame(width, height,
+				new int[] { yStride, uvStride, 0 }, new ByteBuffer[] { y, uv,
+						EMPTY_PLANE });
 	}
 
-	/** Queue |frame| to be uploaded. */
+	private static final ByteBuffer EMPTY_PLANE = ByteBuffer.allocateDirect(0);
+
+	/** Choose how frames queued for |streamId| reach the render thread. */
+	public void setHandoffMode(int streamId, HandoffMode mode) {
+		pipeline.setHandoffMode(streamId, mode);
+	}
+
+	/**
+	 * Queue |frame| to be uploaded. In DIRECT hand-off mode this blocks until
+	 * the frame has been uploaded.
+	 */
 	public void queueFrame(final int streamId, I420Frame frame) {
-		// Paying for the copy of the YUV data here allows CSC and painting time
-		// to get spent on the render thread instead of the UI thread.
-		abortUnless(FramePool.validateDimensions(frame), "Frame too large!");
+		pipeline.queueFrame(streamId, frame);
+	}
 
-		I420Frame frameTaken = framePool.takeFrame(frame);
-		if (frameTaken == null) {
-			log.warn("Frame will not be shown");
-			return;
-		}
+	@Override
+	public void streamAdded(FramePipeline.Stream stream) {
+		stream.setBackendData(new GlStream(stream));
+	}
+
+	@Override
+	public void streamRemoved(FramePipeline.Stream stream) {
+		final GlStream glStream = glStream(stream);
 
-		final I420Frame frameCopy = frameTaken.copyFrom(frame);
 		queueEvent(new Runnable() {
 			@Override
 			public void run() {
-				updateFrame(streamId, frameCopy);
+				textureManager.release(glStream.textures);
+				pipeline.clearPending(glStream.stream);
 			}
 		});
+
+		UploadThread thread = uploadThread;
+		if (thread != null) {
+			thread.schedule(new UploadThread.Task() {
+				@Override
+				public void upload(FrameUploader uploader) {
+					for (TextureManager.Textures textures : glStream.buffers) {
+						uploader.getTextureManager().release(textures);
+					}
+				}
+			});
+		}
 	}
 
-	// Upload the planes from |frame| to the textures owned by this View.
-	private void updateFrame(int streamId, I420Frame frame) {
-		int[] textures;
+	// Have the pending frames of |stream| uploaded by the upload thread, or
+	// by the render thread if there is none.
+	@Override
+	public void frameQueued(FramePipeline.Stream stream) {
+		scheduleUpload(glStream(stream));
+	}
 
-		synchronized (this) {
-			textures = streams.get(streamId).texture;
+	// Only the upload thread takes a lent frame right away, and only while
+	// the back buffer of the stream is free. The render thread would take it
+	// on its next draw, which waits for vsync, or never while paused.
+	@Override
+	public boolean takesLentFrames(FramePipeline.Stream stream) {
+		if (uploadThread == null) {
+			return false;
 		}
+		GlStream glStream = glStream(stream);
+		synchronized (glStream) {
+			return !glStream.ready;
+		}
+	}
 
-		texImage2D(frame, textures);
-		framePool.returnFrame(frame);
+	// GLSurfaceView takes a lock and wakes up the render thread on every
+	// requestRender(), so FramePipeline only calls this once per draw.
+	@Override
+	public void requestDraw() {
 		requestRender();
 	}
 
-	private synchronized void resize() {
+	private static GlStream glStream(FramePipeline.Stream stream) {
+		return (GlStream) stream.getBackendData();
+	}
+
+	// Upload the next pending frame of |stream|, if any, to the textures owned
+	// by this View.
+	private void updateFrame(GlStream stream) {
+		if (uploadThread != null) {
+			flip(stream);
+			return;
+		}
+
+		stream.drawn = stream.textures;
+		if (pipeline.uploadPending(stream.stream, renderUploader,
+				stream.textures)) {
+			checkGLError();
+		}
+
+		// Bounded queues hand out one frame per draw.
+		if (pipeline.hasPending(stream.stream)) {
+			pipeline.scheduleDraw();
+		}
+	}
+
+	// Draw the textures last completed by the upload thread, and let it fill
+	// the other buffer with the next pending frame, if any.
+	private void flip(GlStream stream) {
+		boolean flipped = false;
+		synchronized (stream) {
+			if (stream.ready) {
+				stream.front = 1 - stream.front;
+				stream.ready = false;
+				flipped = true;
+			}
+			stream.drawn = stream.buffers[stream.front];
+		}
+
+		// The upload thread deletes and generates textures behind the back of
+		// |glState|, so a name bound here may now refer to a new texture.
+		if (flipped) {
+			glState.invalidateTextures();
+		}
+
+		if (flipped && pipeline.hasPending(stream.stream)) {
+			scheduleUpload(stream);
+		}
+	}
+
+	private void scheduleUpload(GlStream stream) {
+		UploadThread thread = uploadThread;
+		if (thread == null) {
+			pipeline.scheduleDraw();
+		} else if (stream.uploadScheduled.compareAndSet(false, true)) {
+			thread.schedule(stream);
+		}
+	}
+
+	// Creates the render context like GLSurfaceView does, and an upload
+	// thread with a context sharing its textures.
+	private class UploadContextFactory implements
+			GLSurfaceView.EGLContextFactory {
+
+		private static final int EGL_CONTEXT_CLIENT_VERSION = 0x3098;
+
+		@Override
+		public EGLContext createContext(EGL10 egl, EGLDisplay display,
+				EGLConfig config) {
+			int[] attribs = { EGL_CONTEXT_CLIENT_VERSION, 2, EGL10.EGL_NONE };
+			EGLContext context = egl.eglCreateContext(display, config,
+					EGL10.EGL_NO_CONTEXT, attribs);
+			if (context == null || context == EGL10.EGL_NO_CONTEXT) {
+				return context;
+			}
+
+			// Uploads scheduled on a previous thread were dropped with it.
+			for (FramePipeline.Stream stream : pipeline.getStreams()) {
+				if (stream != null) {
+					GlStream glStream = glStream(stream);
+					glStream.uploadScheduled.set(false);
+					synchronized (glStream) {
+						glStream.front = 0;
+						glStream.ready = false;
+					}
+				}
+			}
+
+			uploadThread = UploadThread.start(egl, display, config, context);
+			for (FramePipeline.Stream stream : pipeline.getStreams()) {
+				if (stream != null) {
+					scheduleUpload(glStream(stream));
+				}
+			}
+			return context;
+		}
+
+		@Override
+		public void destroyContext(EGL10 egl, EGLDisplay display,
+				EGLContext context) {
+			UploadThread thread = uploadThread;
+			uploadThread = null;
+			if (thread != null) {
+				thread.quit();
+			}
+			egl.eglDestroyContext(display, context);
+		}
+	}
+
+	private void resize() {
 		log.debug("resize");
 		if (viewWidth == -1 || viewHeight == -1)
 			return;
 
 		GLES20.glViewport(0, 0, viewWidth, viewHeight);
 
-		for (Stream stream : streams) {
-			if (stream.width != -1 && stream.height != -1) {
-				GLES20.glGenTextures(3, stream.texture, 0);
-				for (int i = 0; i < 3; ++i) {
-					int w = i == 0 ? stream.width : stream.width / 2;
-					int h = i == 0 ? stream.height : stream.height / 2;
-					GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + i);
-					GLES20.glBindTexture(GLES20.GL_TEXTURE_2D,
-							stream.texture[i]);
-					GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0,
-							GLES20.GL_LUMINANCE, w, h, 0, GLES20.GL_LUMINANCE,
-							GLES20.GL_UNSIGNED_BYTE, null);
-					GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-							GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
-					GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-							GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-					GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-							GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-					GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-							GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
-				}
+		// Textures are reallocated only if the geometry changed; a padded
+		// layout chosen by FrameUploader for the same geometry is kept. The
+		// upload thread allocates its own textures, and decimated frames do
+		// not have the geometry set by setSize().
+		for (FramePipeline.Stream stream : pipeline.getStreams()) {
+			if (uploadThread != null || stream == null || stream.decimate
+					|| stream.width == -1 || stream.height == -1) {
+				continue;
+			}
+			TextureManager.Textures textures = glStream(stream).textures;
+			if (stream.width != textures.width
+					|| stream.height != textures.height) {
+				FrameUploader.tightRowWidths(stream.format, stream.width,
+						resizeRowWidths);
+				textureManager.ensure(textures, stream.format, stream.width,
+						stream.height, resizeRowWidths);
 			}
 		}
 
 		checkNoGLES2Error();
 	}
 
-	/** Inform this View of the dimensions of frames coming from |stream|. */
-	public synchronized void setSize(int streamId, int width, int height) {
-		log.debug("setSize endpoint: " + streamId);
-
-		// Generate 3 texture ids for Y/U/V and place them into |textures|,
-		// allocating enough storage for |width|x|height| pixels.
+	/**
+	 * Inform this View of the dimensions of frames coming from |stream|. It
+	 * runs on the render thread, so calls from any other thread are posted
+	 * there with queueEvent().
+	 */
+	public void setSize(final int streamId, final int width,
+			final int height) {
+		if (Thread.currentThread() != renderThread) {
+			queueEvent(new Runnable() {
+				@Override
+				public void run() {
+					setSize(streamId, width, height);
+				}
+			});
+			return;
+		}
 
-		Stream stream = streams.get(streamId);
-		stream.width = width;
-		stream.height = height;
+		log.debug("setSize endpoint: " + streamId);
 
-		resize();
+		if (pipeline.setSize(streamId, width, height)) {
+			resize();
+		}
 	}
 
 	@Override
-	public synchronized void onSurfaceChanged(GL10 unused, int width, int height) {
+	public void onSurfaceChanged(GL10 unused, int width, int height) {
 		log.debug("onSurfaceChanged: " + width + "x" + height);
 		viewWidth = width;
 		viewHeight = height;
@@ -222,55 +560,87 @@ public class VideoStreamView extends GLSurfaceView implements
 
 	@Override
 	public void onDrawFrame(GL10 unused) {
+		long drawStart = pipeline.beginDraw();
 		GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
-		GLES20.glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
-
-		synchronized (this) {
-			for (Stream stream : streams) {
-				drawRectangle(stream.texture, stream.vertices);
+		glState.countIssued(1);
+		glState.clearColor(0.0f, 0.0f, 0.0f, 0.0f);
+
+		FramePipeline.Stream[] streams = pipeline.getStreams();
+		if (batchedDraw) {
+			for (FramePipeline.Stream stream : streams) {
+				if (stream != null) {
+					updateFrame(glStream(stream));
+				}
+			}
+			drawBatch(streams);
+		} else {
+			if (!clientTexCoords) {
+				glState.vertexAttribPointer(TC_LOCATION, 2, 0, textureCoords);
+				clientTexCoords = true;
+			}
+			for (FramePipeline.Stream stream : streams) {
+				if (stream == null) {
+					continue;
+				}
+				GlStream glStream = glStream(stream);
+				updateFrame(glStream);
+				if (!glStream.drawn.isAllocated()) {
+					continue;
+				}
+				drawRectangle(glStream.drawn, stream.layout.vertices);
 			}
 		}
 
-		++numFramesSinceLastLog;
-		long now = System.nanoTime();
-		if (lastFPSLogTime == -1 || now - lastFPSLogTime > 1e9) {
-			double fps = numFramesSinceLastLog / ((now - lastFPSLogTime) / 1e9);
-			log.debug("Rendered FPS: " + fps);
-			lastFPSLogTime = now;
-			numFramesSinceLastLog = 1;
-		}
-		checkNoGLES2Error();
+		checkFrameGLError();
+
+		pipeline.endDraw(drawStart);
+		metrics.recordGLCalls(glState.takeIssuedCalls(),
+				glState.takeSkippedCalls());
 	}
 
 	@Override
 	public void onSurfaceCreated(GL10 unused, EGLConfig config) {
 		log.debug("On surface created");
-		int program = GLES20.glCreateProgram();
-		addShaderTo(GLES20.GL_VERTEX_SHADER, VERTEX_SHADER_STRING, program);
-		addShaderTo(GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER_STRING, program);
-
-		GLES20.glLinkProgram(program);
-		int[] result = new int[] { GLES20.GL_FALSE };
-		result[0] = GLES20.GL_FALSE;
-		GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, result, 0);
-		abortUnless(result[0] == GLES20.GL_TRUE,
-				GLES20.glGetProgramInfoLog(program));
-		GLES20.glUseProgram(program);
-
-		GLES20.glUniform1i(GLES20.glGetUniformLocation(program, "y_tex"), 0);
-		GLES20.glUniform1i(GLES20.glGetUniformLocation(program, "u_tex"), 1);
-		GLES20.glUniform1i(GLES20.glGetUniformLocation(program, "v_tex"), 2);
+		renderThread = Thread.currentThread();
+
+		// Textures and buffers of a previous EGL context are gone.
+		textureManager.invalidateAll();
+		glState.invalidate();
+		batchBuffer[0] = -1;
+		batchStreams = null;
+
+		for (FrameFormat format : FrameFormat.values()) {
+			int program = createProgram(format);
+			programs[format.ordinal()] = program;
+			glState.useProgram(program);
+
+			GLES20.glUniform1i(GLES20.glGetUniformLocation(program, "y_tex"),
+					0);
+			if (format.planes() == 3) {
+				GLES20.glUniform1i(
+						GLES20.glGetUniformLocation(program, "u_tex"), 1);
+				GLES20.glUniform1i(
+						GLES20.glGetUniformLocation(program, "v_tex"), 2);
+			} else {
+				GLES20.glUniform1i(
+						GLES20.glGetUniformLocation(program, "uv_tex"), 1);
+			}
 
-		// Actually set in drawRectangle(), but queried only once here.
-		posLocation = GLES20.glGetAttribLocation(program, "in_pos");
+			// Actually set in drawRectangle(), but queried only once here.
+			tcScaleLocations[format.ordinal()] = GLES20.glGetUniformLocation(
+					program, "tc_scale");
+		}
 
-		int tcLocation = GLES20.glGetAttribLocation(program, "in_tc");
-		GLES20.glEnableVertexAttribArray(tcLocation);
-		GLES20.glVertexAttribPointer(tcLocation, 2, GLES20.GL_FLOAT, false, 0,
-				textureCoords);
+		glState.enableVertexAttribArray(TC_LOCATION);
+		glState.vertexAttribPointer(TC_LOCATION, 2, 0, textureCoords);
+		clientTexCoords = true;
 
-		GLES20.glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
+		glState.clearColor(0.0f, 0.0f, 0.0f, 0.0f);
 		checkNoGLES2Error();
+
+		// Setup calls are not part of any frame.
+		glState.takeIssuedCalls();
+		glState.takeSkippedCalls();
 	}
 
 	// Wrap a float[] in a direct FloatBuffer using native byte order.
@@ -282,36 +652,165 @@ public class VideoStreamView extends GLSurfaceView implements
 		return buffer;
 	}
 
-	// Upload the YUV planes from |frame| to |textures|.
-	private void texImage2D(I420Frame frame, int[] textures) {
-		for (int i = 0; i < 3; ++i) {
-			ByteBuffer plane = frame.yuvPlanes[i];
-			GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + i);
-			GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[i]);
-			int w = i == 0 ? frame.width : frame.width / 2;
-			int h = i == 0 ? frame.height : frame.height / 2;
-			abortUnless(w == frame.yuvStrides[i], frame.yuvStrides[i] + "!="
-					+ w);
-			GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE,
-					w, h, 0, GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE,
-					plane);
+	// Draw |textures| using |vertices| (X,Y coordinates), sampling only the
+	// leftmost cropX of each texture.
+	private void drawRectangle(TextureManager.Textures textures,
+			FloatBuffer vertices) {
+		glState.uniform2f(useProgram(textures.format), textures.cropX, 1);
+		bindTextures(textures);
+
+		glState.vertexAttribPointer(POS_LOCATION, 2, 0, vertices);
+		glState.enableVertexAttribArray(POS_LOCATION);
+
+		glState.drawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+		checkGLError();
+	}
+
+	// Use the program converting frames of |format|, and return the location
+	// of its tc_scale uniform.
+	private int useProgram(FrameFormat format) {
+		glState.useProgram(programs[format.ordinal()]);
+		return tcScaleLocations[format.ordinal()];
+	}
+
+	private void bindTextures(TextureManager.Textures textures) {
+		for (int i = 0; i < textures.planes(); ++i) {
+			glState.activeTexture(GLES20.GL_TEXTURE0 + i);
+			glState.bindTexture(textures.ids[i]);
 		}
-		checkNoGLES2Error();
 	}
 
-	// Draw |textures| using |vertices| (X,Y coordinates).
-	private void drawRectangle(int[] textures, FloatBuffer vertices) {
-		for (int i = 0; i < 3; ++i) {
-			GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + i);
-			GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[i]);
+	// Draw every stream of |streams| holding textures from the batch vertex
+	// buffer: attributes are set up once, and each stream only binds its
+	// textures and draws its quad. Errors are checked once per frame by the
+	// caller.
+	private void drawBatch(FramePipeline.Stream[] streams) {
+		if (batchOutdated(streams)) {
+			buildBatch(streams);
+		}
+
+		glState.bindArrayBuffer(batchBuffer[0]);
+		glState.vertexAttribPointer(POS_LOCATION, 2, BATCH_STRIDE, 0);
+		glState.enableVertexAttribArray(POS_LOCATION);
+		glState.vertexAttribPointer(TC_LOCATION, 2, BATCH_STRIDE, 2 * 4);
+		clientTexCoords = false;
+
+		FrameFormat format = null;
+		for (FramePipeline.Stream s : streams) {
+			GlStream stream = s != null ? glStream(s) : null;
+			if (stream == null || stream.batchIndex == -1) {
+				continue;
+			}
+			if (stream.drawn.format != format) {
+				format = stream.drawn.format;
+				// The crop of each stream is baked into its texture
+				// coordinates.
+				glState.uniform2f(useProgram(format), 1, 1);
+			}
+			bindTextures(stream.drawn);
+			glState.drawArrays(GLES20.GL_TRIANGLE_STRIP,
+					stream.batchIndex * 4, 4);
+		}
+
+		glState.bindArrayBuffer(0);
+	}
+
+	// Whether the batch vertex buffer no longer matches |streams|.
+	private boolean batchOutdated(FramePipeline.Stream[] streams) {
+		if (batchBuffer[0] == -1 || streams != batchStreams) {
+			return true;
+		}
+
+		for (FramePipeline.Stream s : streams) {
+			if (s == null) {
+				continue;
+			}
+			GlStream stream = glStream(s);
+			if ((stream.batchIndex != -1) != stream.drawn.isAllocated()) {
+				return true;
+			}
+			if (stream.batchIndex != -1
+					&& (stream.batchLayout != s.layout
+							|| stream.batchCropX != stream.drawn.cropX)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Fill the batch vertex buffer with a quad for each stream of |streams|
+	// holding textures.
+	private void buildBatch(FramePipeline.Stream[] streams) {
+		int capacity = streams.length * 4 * BATCH_VERTEX_FLOATS;
+		if (batchData == null || batchData.capacity() < capacity) {
+			batchData = ByteBuffer.allocateDirect(capacity * 4)
+					.order(ByteOrder.nativeOrder()).asFloatBuffer();
 		}
 
-		GLES20.glVertexAttribPointer(posLocation, 2, GLES20.GL_FLOAT, false, 0,
-				vertices);
-		GLES20.glEnableVertexAttribArray(posLocation);
+		FloatBuffer data = batchData;
+		data.clear();
+		int quads = 0;
+		for (FramePipeline.Stream s : streams) {
+			if (s == null) {
+				continue;
+			}
+			GlStream stream = glStream(s);
+			if (!stream.drawn.isAllocated()) {
+				stream.batchIndex = -1;
+				continue;
+			}
 
-		GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
-		checkNoGLES2Error();
+			StreamLayout layout = s.layout;
+			FloatBuffer vertices = layout.vertices;
+			float cropX = stream.drawn.cropX;
+			for (int i = 0; i < 4; ++i) {
+				data.put(vertices.get(2 * i));
+				data.put(vertices.get(2 * i + 1));
+				data.put(textureCoords.get(2 * i) * cropX);
+				data.put(textureCoords.get(2 * i + 1));
+			}
+			stream.batchIndex = quads++;
+			stream.batchLayout = layout;
+			stream.batchCropX = cropX;
+		}
+		data.flip();
+
+		if (batchBuffer[0] == -1) {
+			GLES20.glGenBuffers(1, batchBuffer, 0);
+			glState.countIssued(1);
+		}
+		glState.bindArrayBuffer(batchBuffer[0]);
+		GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, data.limit() * 4, data,
+				GLES20.GL_DYNAMIC_DRAW);
+		glState.countIssued(1);
+		batchStreams = streams;
+	}
+
+	// Link a program converting frames of |format| to RGB.
+	private static int createProgram(FrameFormat format) {
+		int program = GLES20.glCreateProgram();
+		addShaderTo(GLES20.GL_VERTEX_SHADER, VERTEX_SHADER_STRING, program);
+		String fragmentShader;
+		switch (format) {
+		case NV12:
+			fragmentShader = semiPlanarFragmentShader("r", "a");
+			break;
+		case NV21:
+			fragmentShader = semiPlanarFragmentShader("a", "r");
+			break;
+		default:
+			fragmentShader = FRAGMENT_SHADER_STRING;
+		}
+		addShaderTo(GLES20.GL_FRAGMENT_SHADER, fragmentShader, program);
+
+		GLES20.glBindAttribLocation(program, POS_LOCATION, "in_pos");
+		GLES20.glBindAttribLocation(program, TC_LOCATION, "in_tc");
+		GLES20.glLinkProgram(program);
+		int[] result = new int[] { GLES20.GL_FALSE };
+		GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, result, 0);
+		abortUnless(result[0] == GLES20.GL_TRUE,
+				GLES20.glGetProgramInfoLog(program));
+		return program;
 	}
 
 	// Compile & attach a |type| shader specified by |source| to |program|.
@@ -335,6 +834,31 @@ public class VideoStreamView extends GLSurfaceView implements
 		}
 	}
 
+	// Assert that no GL error has been raised, if every operation of the
+	// render loop is to be checked.
+	private void checkGLError() {
+		if (errorCheck == ErrorCheck.ALWAYS) {
+			glState.countIssued(1);
+			checkNoGLES2Error();
+		}
+	}
+
+	// Assert that no GL error has been raised since the last check, unless
+	// the check of this frame is not due yet.
+	private void checkFrameGLError() {
+		ErrorCheck check = errorCheck;
+		if (check == ErrorCheck.NEVER) {
+			return;
+		}
+		if (check == ErrorCheck.SAMPLED
+				&& ++framesSinceErrorCheck < errorCheckInterval) {
+			return;
+		}
+		framesSinceErrorCheck = 0;
+		glState.countIssued(1);
+		checkNoGLES2Error();
+	}
+
 	// Assert that no OpenGL ES 2.0 error has been raised.
 	private static void checkNoGLES2Error() {
 		int error = GLES20.glGetError();
@@ -345,15 +869,17 @@ public class VideoStreamView extends GLSurfaceView implements
 	private static final FloatBuffer textureCoords = directNativeFloatBuffer(new float[] {
 			0, 0, 0, 1, 1, 0, 1, 1 });
 
-	// Pass-through vertex shader.
+	// Pass-through vertex shader. Texture coordinates are scaled by |tc_scale|
+	// to crop the row padding of textures uploaded with their stride.
 	private static final String VERTEX_SHADER_STRING = "varying vec2 interp_tc;\n"
 			+ "\n"
 			+ "attribute vec4 in_pos;\n"
 			+ "attribute vec2 in_tc;\n"
+			+ "uniform vec2 tc_scale;\n"
 			+ "\n"
 			+ "void main() {\n"
 			+ "  gl_Position = in_pos;\n"
-			+ "  interp_tc = in_tc;\n" + "}\n";
+			+ "  interp_tc = in_tc * tc_scale;\n" + "}\n";
 
 	// YUV to RGB pixel shader. Loads a pixel from each plane and pass through
 	// the
@@ -369,10 +895,24 @@ public class VideoStreamView extends GLSurfaceView implements
 			+ "  float y = texture2D(y_tex, interp_tc).r;\n"
 			+ "  float u = texture2D(u_tex, interp_tc).r - .5;\n"
 			+ "  float v = texture2D(v_tex, interp_tc).r - .5;\n"
-			+
-			// CSC according to http://www.fourcc.org/fccyvrgb.php
-			"  gl_FragColor = vec4(y + 1.403 * v, "
-			+ "                      y - 0.344 * u - 0.714 * v, "
-			+ "                      y + 1.77 * u, 1);\n" + "}\n";
+			+ YuvConverter.SHADER_CSC + "}\n";
+
+	// Semi-planar YUV to RGB pixel shader. The chroma samples of a pixel come
+	// interleaved in the luminance and alpha channels of a LUMINANCE_ALPHA
+	// texel; |u| and |v| name the channel holding each of them.
+	private static String semiPlanarFragmentShader(String u, String v) {
+		return "precision mediump float;\n"
+				+ "varying vec2 interp_tc;\n"
+				+ "\n"
+				+ "uniform sampler2D y_tex;\n"
+				+ "uniform sampler2D uv_tex;\n"
+				+ "\n"
+				+ "void main() {\n"
+				+ "  float y = texture2D(y_tex, interp_tc).r;\n"
+				+ "  vec4 uv = texture2D(uv_tex, interp_tc);\n"
+				+ "  float u = uv." + u + " - .5;\n"
+				+ "  float v = uv." + v + " - .5;\n"
+				+ YuvConverter.SHADER_CSC + "}\n";
+	}
 
 }
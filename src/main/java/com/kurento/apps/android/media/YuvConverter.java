@@ -0,0 +1,307 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package com.kurento.apps.android.media;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+
+import org.webrtc.VideoRenderer.I420Frame;
+
+/**
+ * Converts YUV frames to ARGB pixels on the CPU with the coefficients of the
+ * VideoStreamView shaders, for snapshots, validation and rendering without
+ * GL. Uses 16.16 fixed-point math with per-sample lookup tables, and
+ * allocates nothing per frame once its scratch rows have grown to the frame
+ * width, as long as frames reuse their plane buffers (e.g. pooled frames).
+ *
+ * With an Executor the frame is split in horizontal bands converted in
+ * parallel, the calling thread converting the first one. An instance runs one
+ * conversion at a time; concurrent callers wait for their turn.
+ *
+ * Chroma planes may hold |height| / 2 rows, as pooled frames do, so the last
+ * row of odd-height frames reuses the chroma row above it.
+ */
+public class YuvConverter {
+
+	private static final int SHIFT = 16;
+	private static final int ROUND = 1 << (SHIFT - 1);
+
+	// Shader coefficients: CSC according to http://www.fourcc.org/fccyvrgb.php
+	static final double V_TO_R = 1.403;
+	static final double U_TO_G = 0.344;
+	static final double V_TO_G = 0.714;
+	static final double U_TO_B = 1.77;
+
+	// The conversion run by the VideoStreamView fragment shaders, with y, u
+	// and v normalized and chroma centered on 0.
+	static final String SHADER_CSC = "  gl_FragColor = vec4(y + " + V_TO_R
+			+ " * v, y - " + U_TO_G + " * u - " + V_TO_G + " * v, y + "
+			+ U_TO_B + " * u, 1);\n";
+
+	// Contribution of each chroma sample, in 16.16 fixed point. The shader
+	// samples normalized textures and subtracts .5, so chroma is centered on
+	// 127.5 rather than 128.
+	private static final int[] R_V = new int[256];
+	private static final int[] G_U = new int[256];
+	private static final int[] G_V = new int[256];
+	private static final int[] B_U = new int[256];
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			double c = i - 127.5;
+			R_V[i] = (int) Math.round(V_TO_R * c * (1 << SHIFT));
+			G_U[i] = (int) Math.round(-U_TO_G * c * (1 << SHIFT));
+			G_V[i] = (int) Math.round(-V_TO_G * c * (1 << SHIFT));
+			B_U[i] = (int) Math.round(U_TO_B * c * (1 << SHIFT));
+		}
+	}
+
+	private final Executor executor;
+	private final Band[] bands;
+	// Held across a whole conversion. The bands report back through the
+	// monitor of the converter, which wait() releases, so it cannot keep a
+	// second conversion out.
+	private final Object convertLock = new Object();
+
+	// Conversion in progress, set by convert() for the bands.
+	private I420Frame frame;
+	private FrameFormat format;
+	private int[] argb;
+	private int argbStride;
+	private int pendingBands;
+	private Throwable bandError;
+
+	/** Convert on the calling thread only. */
+	public YuvConverter() {
+		this(null, 1);
+	}
+
+	/**
+	 * Convert in |nBands| bands, all but the first one run by |executor|,
+	 * which should have at least |nBands| - 1 threads.
+	 */
+	public YuvConverter(Executor executor, int nBands) {
+		if (nBands < 1 || (nBands > 1 && executor == null)) {
+			throw new IllegalArgumentException("Invalid number of bands: "
+					+ nBands);
+		}
+		this.executor = executor;
+		bands = new Band[nBands];
+		for (int i = 0; i < nBands; i++) {
+			bands[i] = new Band(i);
+		}
+	}
+
+	/** Convert an I420 |frame|; see convert(I420Frame, FrameFormat, ...). */
+	public void convert(I420Frame frame, int[] argb, int argbStride) {
+		convert(frame, FrameFormat.I420, argb, argbStride);
+	}
+
+	/**
+	 * Write the pixels of |frame|, holding |format| samples, to |argb| as
+	 * 0xAARRGGBB values, with rows |argbStride| pixels apart.
+	 */
+	public void convert(I420Frame frame, FrameFormat format, int[] argb,
+			int argbStride) {
+		if (argbStride < frame.width
+				|| argb.length < (long) argbStride * (frame.height - 1)
+						+ frame.width) {
+			throw new IllegalArgumentException("ARGB buffer too small");
+		}
+
+		synchronized (convertLock) {
+			int nBands = Math.min(bands.length, frame.height / 2);
+			if (nBands <= 1) {
+				bands[0].convertRows(frame, format, argb, argbStride, 0,
+						frame.height);
+			} else {
+				convertBands(frame, format, argb, argbStride, nBands);
+			}
+		}
+	}
+
+	private synchronized void convertBands(I420Frame frame,
+			FrameFormat format, int[] argb, int argbStride, int nBands) {
+		this.frame = frame;
+		this.format = format;
+		this.argb = argb;
+		this.argbStride = argbStride;
+		pendingBands = nBands;
+		bandError = null;
+
+		try {
+			for (int i = 0; i < nBands; i++) {
+				bands[i].nBands = nBands;
+			}
+			for (int i = 1; i < nBands; i++) {
+				executor.execute(bands[i]);
+			}
+			bands[0].run();
+
+			boolean interrupted = false;
+			while (pendingBands > 0) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			if (bandError != null) {
+				throw new RuntimeException("Band conversion failed",
+						bandError);
+			}
+		} finally {
+			this.frame = null;
+			this.argb = null;
+		}
+	}
+
+	/**
+	 * ARGB value of one pixel computed in floating point exactly as the
+	 * shaders do, to validate the fixed-point conversion against.
+	 */
+	public static int referencePixel(int y, int u, int v) {
+		double yn = y / 255.0;
+		double un = u / 255.0 - .5;
+		double vn = v / 255.0 - .5;
+		int r = toByte(yn + V_TO_R * vn);
+		int g = toByte(yn - U_TO_G * un - V_TO_G * vn);
+		int b = toByte(yn + U_TO_B * un);
+		return 0xff000000 | r << 16 | g << 8 | b;
+	}
+
+	private static int toByte(double normalized) {
+		return (int) Math.round(Math.max(0, Math.min(1, normalized)) * 255);
+	}
+
+	private static int clamp(int value) {
+		return (value & ~0xff) == 0 ? value : value < 0 ? 0 : 0xff;
+	}
+
+	private synchronized void bandDone(Throwable error) {
+		if (error != null && bandError == null) {
+			bandError = error;
+		}
+		if (--pendingBands == 0) {
+			notifyAll();
+		}
+	}
+
+	// A horizontal band of the frame with its own scratch rows.
+	private final class Band implements Runnable {
+
+		private final int index;
+		private int nBands;
+		private byte[] yRow = new byte[0];
+		private byte[] uRow = new byte[0];
+		private byte[] vRow = new byte[0];
+		// Views of the last planes converted, each band reading them at its
+		// own position.
+		private final ByteBuffer[] sources = new ByteBuffer[3];
+		private final ByteBuffer[] views = new ByteBuffer[3];
+
+		Band(int index) {
+			this.index = index;
+		}
+
+		@Override
+		public void run() {
+			Throwable error = null;
+			try {
+				// Bands start on even rows, so no chroma row is shared.
+				int rows = (frame.height / nBands) & ~1;
+				int first = index * rows;
+				int last = index == nBands - 1 ? frame.height : first + rows;
+				convertRows(frame, format, argb, argbStride, first, last);
+			} catch (Throwable t) {
+				error = t;
+			}
+
+			bandDone(error);
+		}
+
+		void convertRows(I420Frame frame, FrameFormat format, int[] argb,
+				int argbStride, int first, int last) {
+			int width = frame.width;
+			boolean semiPlanar = format.planes() == 2;
+			int chromaBytes = semiPlanar ? width / 2 * 2 : width / 2;
+			if (yRow.length < width) {
+				yRow = new byte[width];
+			}
+			if (uRow.length < chromaBytes) {
+				uRow = new byte[chromaBytes];
+				vRow = new byte[chromaBytes];
+			}
+
+			// Offsets of the U and V samples of a chroma pair.
+			int uOffset = format == FrameFormat.NV21 ? 1 : 0;
+			int vOffset = 1 - uOffset;
+
+			ByteBuffer yPlane = view(frame, 0);
+			ByteBuffer uPlane = view(frame, 1);
+			ByteBuffer vPlane = view(frame, 2);
+			// Last chroma sample of odd-width rows, and last chroma row of
+			// odd-height frames.
+			int lastChroma = Math.max(0, width / 2 - 1);
+			int lastChromaRow = Math.max(0, frame.height / 2 - 1);
+			int chromaRow = -1;
+			for (int row = first; row < last; row++) {
+				yPlane.position(row * frame.yuvStrides[0]);
+				yPlane.get(yRow, 0, width);
+				int nextChromaRow = Math.min(row / 2, lastChromaRow);
+				if (nextChromaRow != chromaRow) {
+					chromaRow = nextChromaRow;
+					uPlane.position(chromaRow * frame.yuvStrides[1]);
+					uPlane.get(uRow, 0, chromaBytes);
+					if (!semiPlanar) {
+						vPlane.position(chromaRow * frame.yuvStrides[2]);
+						vPlane.get(vRow, 0, chromaBytes);
+					}
+				}
+
+				int out = row * argbStride;
+				for (int x = 0; x < width; x++) {
+					int u, v;
+					int cx = Math.min(x >> 1, lastChroma);
+					if (semiPlanar) {
+						int pair = cx << 1;
+						u = uRow[pair + uOffset] & 0xff;
+						v = uRow[pair + vOffset] & 0xff;
+					} else {
+						u = uRow[cx] & 0xff;
+						v = vRow[cx] & 0xff;
+					}
+					int y = ((yRow[x] & 0xff) << SHIFT) + ROUND;
+					int r = clamp((y + R_V[v]) >> SHIFT);
+					int g = clamp((y + G_U[u] + G_V[v]) >> SHIFT);
+					int b = clamp((y + B_U[u]) >> SHIFT);
+					argb[out + x] = 0xff000000 | r << 16 | g << 8 | b;
+				}
+			}
+		}
+
+		private ByteBuffer view(I420Frame frame, int plane) {
+			if (sources[plane] != frame.yuvPlanes[plane]) {
+				sources[plane] = frame.yuvPlanes[plane];
+				views[plane] = sources[plane].duplicate();
+			}
+			return views[plane];
+		}
+	}
+
+}
@@ -0,0 +1,272 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package com.kurento.apps.android.media;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.webrtc.VideoRenderer.I420Frame;
+
+/**
+ * Runs the frame pipeline through a HeadlessRenderBackend, drawing on the
+ * test thread.
+ */
+public class FramePipelineTest {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(FramePipelineTest.class.getSimpleName());
+
+	private static final int POOL_DEPTH = 4;
+
+	@Test
+	public void decimatesFramesMuchLargerThanLayout() {
+		HeadlessRenderBackend backend = newBackend(320, 180);
+		FramePipeline pipeline = backend.getPipeline();
+		int id = pipeline.registerStream(DropPolicy.LATEST_ONLY, 1);
+		assertTrue(backend.setStreamDimensions(id, 320, 180, 0, 0));
+		pipeline.setDecimation(id, true);
+
+		pipeline.queueFrame(id, newFrame(1280, 720, 0, 100, 50, 200));
+		drawAll(backend);
+
+		RenderMetrics.Snapshot metrics = pipeline.getStreamMetrics(id);
+		assertEquals(1, metrics.decimatedFrames);
+		assertEquals(1, metrics.uploadCount);
+		// Only a 320x180 frame was taken from the pool.
+		assertTrue(pipeline.getFrameMemoryInUse() <= 320 * 180 * 3 / 2);
+		assertUniform(backend, pixel(100, 50, 200));
+	}
+
+	@Test
+	public void ignoresRowPadding() {
+		HeadlessRenderBackend backend = newBackend(64, 32);
+		FramePipeline pipeline = backend.getPipeline();
+		int id = pipeline.registerStream(DropPolicy.LATEST_ONLY, 1);
+		assertTrue(backend.setStreamDimensions(id, 64, 32, 0, 0));
+
+		// Padding bytes hold a different color than the visible ones.
+		I420Frame frame = newFrame(64, 32, 32, 255, 255, 255);
+		fillVisible(frame, 0, 64, 32, 80);
+		fillVisible(frame, 1, 32, 16, 90);
+		fillVisible(frame, 2, 32, 16, 160);
+		pipeline.queueFrame(id, frame);
+		drawAll(backend);
+
+		assertUniform(backend, pixel(80, 90, 160));
+	}
+
+	@Test
+	public void latestOnlyKeepsNewestFrame() {
+		HeadlessRenderBackend backend = newBackend(16, 16);
+		FramePipeline pipeline = backend.getPipeline();
+		int id = pipeline.registerStream(DropPolicy.LATEST_ONLY, 1);
+		assertTrue(backend.setStreamDimensions(id, 16, 16, 0, 0));
+
+		for (int y = 10; y <= 30; y += 10) {
+			pipeline.queueFrame(id, newFrame(16, 16, 0, y, 128, 128));
+		}
+		assertEquals(1, drawAll(backend));
+
+		RenderMetrics.Snapshot metrics = pipeline.getStreamMetrics(id);
+		assertEquals(2, metrics.mailboxDrops);
+		assertEquals(1, metrics.uploadCount);
+		assertUniform(backend, pixel(30, 128, 128));
+	}
+
+	@Test
+	public void boundedQueueDropsOldestFrame() {
+		HeadlessRenderBackend backend = newBackend(16, 16);
+		FramePipeline pipeline = backend.getPipeline();
+		int id = pipeline.registerStream(DropPolicy.BOUNDED_QUEUE, 2);
+		assertTrue(backend.setStreamDimensions(id, 16, 16, 0, 0));
+
+		for (int y = 10; y <= 30; y += 10) {
+			pipeline.queueFrame(id, newFrame(16, 16, 0, y, 128, 128));
+		}
+
+		// One frame per draw, oldest first.
+		assertTrue(backend.drawIfRequested());
+		assertUniform(backend, pixel(20, 128, 128));
+		assertTrue(backend.drawIfRequested());
+		assertUniform(backend, pixel(30, 128, 128));
+		assertFalse(backend.drawIfRequested());
+
+		RenderMetrics.Snapshot metrics = pipeline.getStreamMetrics(id);
+		assertEquals(1, metrics.mailboxDrops);
+		assertEquals(2, metrics.uploadCount);
+	}
+
+	@Test
+	public void unregisterReleasesFrameMemory() {
+		HeadlessRenderBackend backend = newBackend(64, 64);
+		FramePipeline pipeline = backend.getPipeline();
+		int id = pipeline.registerStream(DropPolicy.BOUNDED_QUEUE, 2);
+		assertTrue(backend.setStreamDimensions(id, 64, 64, 0, 0));
+
+		pipeline.queueFrame(id, newFrame(64, 64, 0, 10, 128, 128));
+		pipeline.queueFrame(id, newFrame(64, 64, 0, 20, 128, 128));
+		assertTrue(pipeline.getFrameMemoryInUse() > 0);
+
+		pipeline.unregisterStream(id);
+		assertEquals(0, pipeline.getFrameMemoryInUse());
+		assertEquals(0, pipeline.getFrameMemoryReserved());
+
+		// A late frame for the stream is dropped.
+		drawAll(backend);
+		pipeline.queueFrame(id, newFrame(64, 64, 0, 30, 128, 128));
+		assertFalse(backend.isDrawRequested());
+		assertEquals(0, pipeline.getFrameMemoryInUse());
+	}
+
+	@Test
+	public void reusedSlotGetsNewId() {
+		HeadlessRenderBackend backend = newBackend(16, 16);
+		FramePipeline pipeline = backend.getPipeline();
+		int stale = pipeline.registerStream(DropPolicy.LATEST_ONLY, 1);
+		pipeline.unregisterStream(stale);
+		int id = pipeline.registerStream(DropPolicy.LATEST_ONLY, 1);
+		assertTrue(id != stale);
+		assertTrue(backend.setStreamDimensions(id, 16, 16, 0, 0));
+		assertFalse(backend.setStreamDimensions(stale, 16, 16, 0, 0));
+
+		pipeline.queueFrame(stale, newFrame(16, 16, 0, 10, 128, 128));
+		assertEquals(0, pipeline.getStreamMetrics(id).copyCount);
+
+		try {
+			pipeline.getStreamMetrics(stale);
+			fail("Stale id still registered");
+		} catch (IllegalArgumentException e) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void directStreamCopiesWhenFramesAreNotTaken() {
+		HeadlessRenderBackend backend = newBackend(16, 16);
+		FramePipeline pipeline = backend.getPipeline();
+		int id = pipeline.registerStream(DropPolicy.LATEST_ONLY, 1);
+		assertTrue(backend.setStreamDimensions(id, 16, 16, 0, 0));
+		pipeline.setHandoffMode(id, HandoffMode.DIRECT);
+
+		pipeline.queueFrame(id, newFrame(16, 16, 0, 40, 128, 128));
+		drawAll(backend);
+
+		RenderMetrics.Snapshot metrics = pipeline.getStreamMetrics(id);
+		assertEquals(1, metrics.handoffSkips);
+		assertEquals(0, metrics.handoffCount);
+		assertEquals(1, metrics.copyCount);
+		assertUniform(backend, pixel(40, 128, 128));
+	}
+
+	@Test
+	public void recordsStageTimings() {
+		int nFrames = 30;
+		HeadlessRenderBackend backend = newBackend(640, 360);
+		FramePipeline pipeline = backend.getPipeline();
+		int full = pipeline.registerStream(DropPolicy.LATEST_ONLY, 1);
+		int decimated = pipeline.registerStream(DropPolicy.BOUNDED_QUEUE, 2);
+		assertTrue(backend.setStreamDimensions(full, 320, 180, 0, 0));
+		assertTrue(backend.setStreamDimensions(decimated, 320, 180, 320, 180));
+		pipeline.setDecimation(decimated, true);
+
+		I420Frame frame = newFrame(1280, 720, 64, 100, 120, 140);
+		for (int i = 0; i < nFrames; i++) {
+			pipeline.queueFrame(full, frame);
+			pipeline.queueFrame(decimated, frame);
+			drawAll(backend);
+		}
+
+		RenderMetrics.Snapshot metrics = pipeline.getMetrics();
+		log.info("720p x2, {} frames: {}", nFrames, metrics);
+		log.info("Full stream: {}", pipeline.getStreamMetrics(full));
+		log.info("Decimated stream: {}", pipeline.getStreamMetrics(decimated));
+
+		assertEquals(2 * nFrames, metrics.copyCount);
+		assertEquals(nFrames, metrics.decimatedFrames);
+		assertEquals(2 * nFrames, metrics.uploadCount);
+		assertEquals(nFrames, metrics.drawCount);
+		assertTrue(metrics.getAvgCopyNanos() > 0);
+		assertTrue(metrics.getAvgUploadNanos(0) > 0);
+		assertTrue(metrics.getAvgDrawNanos() > 0);
+	}
+
+	private static HeadlessRenderBackend newBackend(int width, int height) {
+		return new HeadlessRenderBackend(width, height, POOL_DEPTH,
+				new YuvConverter());
+	}
+
+	// Run the requested draws, returning how many there were.
+	private static int drawAll(HeadlessRenderBackend backend) {
+		int draws = 0;
+		while (backend.drawIfRequested()) {
+			draws++;
+		}
+		return draws;
+	}
+
+	// A frame filled with |y|, |u| and |v|, its rows padded by |padding|.
+	private static I420Frame newFrame(int width, int height, int padding,
+			int y, int u, int v) {
+		I420Frame frame = YuvConverterTest.newFrame(width, height, width
+				+ padding, width / 2 + padding / 2);
+		fill(frame.yuvPlanes[0], y);
+		fill(frame.yuvPlanes[1], u);
+		fill(frame.yuvPlanes[2], v);
+		return frame;
+	}
+
+	private static void fill(ByteBuffer plane, int value) {
+		for (int i = 0; i < plane.capacity(); i++) {
+			plane.put(i, (byte) value);
+		}
+	}
+
+	// Fill the first |width| bytes of the |rows| rows of a plane.
+	private static void fillVisible(I420Frame frame, int plane, int width,
+			int rows, int value) {
+		for (int row = 0; row < rows; row++) {
+			for (int x = 0; x < width; x++) {
+				frame.yuvPlanes[plane].put(
+						row * frame.yuvStrides[plane] + x, (byte) value);
+			}
+		}
+	}
+
+	// The color the backend draws for |y|, |u| and |v|.
+	private static int pixel(int y, int u, int v) {
+		int[] argb = new int[4];
+		new YuvConverter().convert(newFrame(2, 2, 0, y, u, v), argb, 2);
+		return argb[0];
+	}
+
+	private static void assertUniform(HeadlessRenderBackend backend,
+			int expected) {
+		int[] pixels = backend.getPixels();
+		for (int i = 0; i < backend.getWidth() * backend.getHeight(); i++) {
+			if (pixels[i] != expected) {
+				assertEquals("Pixel " + i, Integer.toHexString(expected),
+						Integer.toHexString(pixels[i]));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,122 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package com.kurento.apps.android.media;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.webrtc.VideoRenderer.I420Frame;
+
+public class PlaneCopierTest {
+
+	private static final int PRODUCERS = 3;
+	private static final int COPIES = 500;
+
+	@Test
+	public void serialCopyKeepsBufferState() {
+		PlaneCopier copier = new PlaneCopier(0, PlaneCopier.DEFAULT_THRESHOLD);
+		I420Frame source = newFrame(64, 31, 7);
+		I420Frame dest = newFrame(64, 31, 0);
+		source.yuvPlanes[0].position(5);
+
+		copier.copy(source, dest);
+
+		assertEquals(5, source.yuvPlanes[0].position());
+		assertEquals(source.yuvPlanes[0].capacity(),
+				source.yuvPlanes[0].limit());
+		assertEquals(0, mismatches(dest, 7));
+	}
+
+	@Test
+	public void concurrentParallelCopiesDoNotMix() throws Exception {
+		// Every frame is large enough to be split in stripes.
+		final PlaneCopier copier = new PlaneCopier(2, 0);
+		final AtomicInteger corrupt = new AtomicInteger();
+		final AtomicReference<Throwable> error =
+				new AtomicReference<Throwable>();
+		Thread[] producers = new Thread[PRODUCERS];
+
+		for (int p = 0; p < PRODUCERS; p++) {
+			final int value = p + 1;
+			producers[p] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						I420Frame source = newFrame(320, 240, value);
+						I420Frame dest = newFrame(320, 240, 0);
+						for (int i = 0; i < COPIES; i++) {
+							copier.copy(source, dest);
+							if (mismatches(dest, value) > 0) {
+								corrupt.incrementAndGet();
+							}
+							fill(dest, 0);
+						}
+					} catch (Throwable t) {
+						error.compareAndSet(null, t);
+					}
+				}
+			};
+			producers[p].start();
+		}
+		for (Thread producer : producers) {
+			producer.join();
+		}
+
+		assertEquals(null, error.get());
+		assertEquals(0, corrupt.get());
+		assertTrue(copier.isParallel(newFrame(2, 2, 0)));
+	}
+
+	private static I420Frame newFrame(int width, int height, int value) {
+		int chromaRows = (height + 1) / 2;
+		I420Frame frame = new I420Frame(width, height, new int[] { width,
+				width / 2, width / 2 }, new ByteBuffer[] {
+				ByteBuffer.allocateDirect(width * height),
+				ByteBuffer.allocateDirect(width / 2 * chromaRows),
+				ByteBuffer.allocateDirect(width / 2 * chromaRows) });
+		fill(frame, value);
+		return frame;
+	}
+
+	private static void fill(I420Frame frame, int value) {
+		for (ByteBuffer plane : frame.yuvPlanes) {
+			for (int i = 0; i < plane.capacity(); i++) {
+				plane.put(i, (byte) value);
+			}
+		}
+	}
+
+	// Bytes of the planes of |frame| copied by the copier that are not
+	// |value|.
+	private static int mismatches(I420Frame frame, int value) {
+		int count = 0;
+		for (int plane = 0; plane < 3; plane++) {
+			int rows = plane == 0 ? frame.height : frame.height / 2;
+			int size = frame.yuvStrides[plane] * rows;
+			for (int i = 0; i < size; i++) {
+				if (frame.yuvPlanes[plane].get(i) != (byte) value) {
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+}
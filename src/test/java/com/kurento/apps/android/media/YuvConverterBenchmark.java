@@ -0,0 +1,103 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package com.kurento.apps.android.media;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.webrtc.VideoRenderer.I420Frame;
+
+/**
+ * Scalar vs banded YuvConverter throughput at the usual stream heights. Run
+ * from the test classpath with main(), e.g. through exec:java.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class YuvConverterBenchmark {
+
+	@Param({ "480", "720", "1080" })
+	int height;
+
+	// 1 converts on the calling thread only.
+	@Param({ "1", "4" })
+	int bands;
+
+	private ExecutorService executor;
+	private YuvConverter converter;
+	private I420Frame frame;
+	private int[] argb;
+
+	@Setup
+	public void setUp() {
+		int width = (height * 16 / 9 + 1) & ~1;
+		frame = YuvConverterTest.newFrame(width, height, width, width / 2);
+		Random random = new Random(42);
+		for (ByteBuffer plane : frame.yuvPlanes) {
+			byte[] bytes = new byte[plane.capacity()];
+			random.nextBytes(bytes);
+			plane.put(bytes);
+			plane.rewind();
+		}
+		argb = new int[width * height];
+
+		if (bands > 1) {
+			executor = Executors.newFixedThreadPool(bands - 1);
+			converter = new YuvConverter(executor, bands);
+		} else {
+			converter = new YuvConverter();
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		if (executor != null) {
+			executor.shutdown();
+		}
+	}
+
+	@Benchmark
+	public int[] convert() {
+		converter.convert(frame, argb, frame.width);
+		return argb;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(
+				YuvConverterBenchmark.class.getSimpleName()).build()).run();
+	}
+
+}
@@ -0,0 +1,211 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ */
+package com.kurento.apps.android.media;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.webrtc.VideoRenderer.I420Frame;
+
+public class YuvConverterTest {
+
+	private static final int BANDS = 4;
+
+	private static ExecutorService executor;
+
+	@BeforeClass
+	public static void startExecutor() {
+		executor = Executors.newFixedThreadPool(BANDS - 1);
+	}
+
+	@AfterClass
+	public static void stopExecutor() {
+		executor.shutdown();
+	}
+
+	@Test
+	public void shaderUsesConverterCoefficients() {
+		Matcher m = Pattern.compile(
+				"vec4\\(y \\+ ([\\d.]+) \\* v, y - ([\\d.]+) \\* u - ([\\d.]+)"
+						+ " \\* v, y \\+ ([\\d.]+) \\* u, 1\\)").matcher(
+				YuvConverter.SHADER_CSC);
+		assertTrue(YuvConverter.SHADER_CSC, m.find());
+
+		assertEquals(YuvConverter.V_TO_R, Double.parseDouble(m.group(1)), 0);
+		assertEquals(YuvConverter.U_TO_G, Double.parseDouble(m.group(2)), 0);
+		assertEquals(YuvConverter.V_TO_G, Double.parseDouble(m.group(3)), 0);
+		assertEquals(YuvConverter.U_TO_B, Double.parseDouble(m.group(4)), 0);
+	}
+
+	@Test
+	public void matchesShaderWithinOneStep() {
+		// One 2x2 block per U/V pair, all four pixels with the same Y.
+		int width = 2 * 256;
+		int height = 2 * 256;
+		I420Frame frame = newFrame(width, height, width, width / 2);
+		int[] argb = new int[width * height];
+		YuvConverter converter = new YuvConverter();
+
+		for (int y = 0; y < 256; y += 5) {
+			for (int v = 0; v < 256; v++) {
+				for (int u = 0; u < 256; u++) {
+					frame.yuvPlanes[1].put(v * frame.yuvStrides[1] + u,
+							(byte) u);
+					frame.yuvPlanes[2].put(v * frame.yuvStrides[2] + u,
+							(byte) v);
+				}
+			}
+			fill(frame.yuvPlanes[0], (byte) y);
+			converter.convert(frame, argb, width);
+
+			for (int v = 0; v < 256; v++) {
+				for (int u = 0; u < 256; u++) {
+					int expected = YuvConverter.referencePixel(y, u, v);
+					int actual = argb[2 * v * width + 2 * u];
+					assertPixelClose("y=" + y + " u=" + u + " v=" + v,
+							expected, actual);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void bandedMatchesScalar() {
+		Random random = new Random(42);
+		int[][] sizes = { { 854, 480 }, { 1280, 720 }, { 1920, 1080 } };
+
+		for (int[] size : sizes) {
+			int width = size[0];
+			int height = size[1];
+			// Padded rows, as decoders hand them, wide enough for the
+			// interleaved chroma of the semi-planar formats.
+			I420Frame frame = newFrame(width, height, width + 32,
+					width + 16);
+			for (ByteBuffer plane : frame.yuvPlanes) {
+				byte[] bytes = new byte[plane.capacity()];
+				random.nextBytes(bytes);
+				plane.put(bytes);
+				plane.rewind();
+			}
+
+			for (FrameFormat format : FrameFormat.values()) {
+				int[] scalar = new int[width * height];
+				int[] banded = new int[width * height];
+				new YuvConverter().convert(frame, format, scalar, width);
+				new YuvConverter(executor, BANDS).convert(frame, format,
+						banded, width);
+				assertArrayEquals(height + "p " + format, scalar, banded);
+			}
+		}
+	}
+
+	@Test
+	public void oddHeightReusesLastChromaRow() {
+		// Chroma planes of |height| / 2 rows, as the frame pool allocates.
+		I420Frame frame = newFrame(16, 15, 16, 8);
+		fill(frame.yuvPlanes[0], (byte) 100);
+		fill(frame.yuvPlanes[1], (byte) 60);
+		fill(frame.yuvPlanes[2], (byte) 200);
+		int[] argb = new int[16 * 15];
+
+		new YuvConverter().convert(frame, argb, 16);
+
+		for (int i = 0; i < argb.length; i++) {
+			assertEquals(argb[0], argb[i]);
+		}
+	}
+
+	@Test
+	public void concurrentConversionsDoNotMix() throws Exception {
+		final YuvConverter converter = new YuvConverter(executor, BANDS);
+		final AtomicInteger corrupt = new AtomicInteger();
+		final AtomicReference<Throwable> error =
+				new AtomicReference<Throwable>();
+		Thread[] callers = new Thread[3];
+
+		for (int c = 0; c < callers.length; c++) {
+			final byte luma = (byte) (50 + 50 * c);
+			callers[c] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						I420Frame frame = newFrame(320, 240, 320, 160);
+						fill(frame.yuvPlanes[0], luma);
+						fill(frame.yuvPlanes[1], (byte) 128);
+						fill(frame.yuvPlanes[2], (byte) 128);
+						int[] argb = new int[320 * 240];
+						for (int i = 0; i < 200; i++) {
+							converter.convert(frame, argb, 320);
+							for (int pixel : argb) {
+								if (pixel != argb[0]) {
+									corrupt.incrementAndGet();
+									break;
+								}
+							}
+						}
+					} catch (Throwable t) {
+						error.compareAndSet(null, t);
+					}
+				}
+			};
+			callers[c].start();
+		}
+		for (Thread caller : callers) {
+			caller.join();
+		}
+
+		assertEquals(null, error.get());
+		assertEquals(0, corrupt.get());
+	}
+
+	static I420Frame newFrame(int width, int height, int yStride,
+			int uvStride) {
+		return new I420Frame(width, height, new int[] { yStride, uvStride,
+				uvStride }, new ByteBuffer[] {
+				ByteBuffer.allocateDirect(yStride * height),
+				ByteBuffer.allocateDirect(uvStride * height / 2),
+				ByteBuffer.allocateDirect(uvStride * height / 2) });
+	}
+
+	private static void fill(ByteBuffer plane, byte value) {
+		for (int i = 0; i < plane.capacity(); i++) {
+			plane.put(i, value);
+		}
+	}
+
+	private static void assertPixelClose(String message, int expected,
+			int actual) {
+		for (int shift = 0; shift < 32; shift += 8) {
+			int delta = ((expected >> shift) & 0xff)
+					- ((actual >> shift) & 0xff);
+			assertTrue(message + ": " + Integer.toHexString(expected) + " vs "
+					+ Integer.toHexString(actual), Math.abs(delta) <= 1);
+		}
+	}
+
+}